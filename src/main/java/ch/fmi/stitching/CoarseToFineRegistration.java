@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.stitching.StitchingParameters;
+
+/**
+ * Coarse-to-fine registration of 2D tiles.
+ * <p>
+ * Shifts between overlapping tiles are first estimated by phase correlation
+ * on binned copies of the tiles, and then refined on each finer level within
+ * a small window only, so that no full resolution FFT of the whole overlap is
+ * needed. The binned copies of a tile are built by the first pair needing
+ * them, on the threads of the {@link RegistrationEngine}, and dropped after
+ * the last pair using them. The resulting pairwise shifts are globally
+ * optimized as in
+ * {@link StitchingUtils#computeStitching(ArrayList, List, StitchingParameters)}.
+ * </p>
+ */
+public class CoarseToFineRegistration {
+
+	/** Size (in pixels of the respective level) of the refinement windows */
+	public static final int REFINEMENT_WINDOW = 256;
+
+	/** Minimum size (in pixels of the respective level) of a region to correlate */
+	private static final int MIN_REGION_SIZE = 16;
+
+	private CoarseToFineRegistration() {
+		// prevent instantiation of static utility class
+	}
+
+	/**
+	 * Compute optimal tile positions from a list of known initial positions,
+	 * starting at a binned resolution.
+	 * 
+	 * @param images List of 2D tiles
+	 * @param positions List of known positions
+	 * @param params {@link StitchingParameters} defining the options for
+	 *          stitching, with {@code channel1} selecting the registration
+	 *          channel (1-based, or 0 to use the average of all channels)
+	 * @param binning Binning factor of the coarsest level (rounded down to a
+	 *          power of two)
+	 * @return List of transformation models
+	 */
+	public static ArrayList<InvertibleBoundable> register(ArrayList<ImagePlus> images, List<float[]> positions, StitchingParameters params, int binning) {
+		return register(images, positions, params, binning, StitchingUtils.DEFAULT_MIN_OVERLAP, RegistrationEngine.create(params.cpuMemChoice == 0));
+	}
+
+	/**
+	 * Compute optimal tile positions from a list of known initial positions,
+	 * starting at a binned resolution.
+	 * 
+	 * @param images List of 2D tiles
+	 * @param positions List of known positions
+	 * @param params {@link StitchingParameters} defining the options for
+	 *          stitching, with {@code channel1} selecting the registration
+	 *          channel (1-based, or 0 to use the average of all channels)
+	 * @param binning Binning factor of the coarsest level (rounded down to a
+	 *          power of two)
+	 * @param minOverlap Minimum overlap of a pair of tiles (as fraction of the
+	 *          smaller tile) to register it
+	 * @param engine {@link RegistrationEngine} registering the pairs of tiles
+	 * @return List of transformation models
+	 */
+	public static ArrayList<InvertibleBoundable> register(ArrayList<ImagePlus> images, List<float[]> positions, StitchingParameters params, int binning, double minOverlap, RegistrationEngine engine) {
+		if (images.size() != positions.size()) {
+			throw new RuntimeException("number of images (" + images.size() + ") != number of positions (" + positions.size() + ")");
+		}
+		int nLevels = 0;
+		while ((2 << nLevels) <= binning) nLevels++;
+
+		int maxWidth = 0;
+		int maxHeight = 0;
+		long maxPixels = 0;
+		for (ImagePlus imp : images) {
+			maxWidth = Math.max(maxWidth, imp.getWidth());
+			maxHeight = Math.max(maxHeight, imp.getHeight());
+			maxPixels = Math.max(maxPixels, (long) imp.getWidth() * imp.getHeight());
+		}
+
+		// largest region correlated on any level
+		int regionWidth = Math.max(maxWidth >> nLevels, Math.min(maxWidth, REFINEMENT_WINDOW));
+		int regionHeight = Math.max(maxHeight >> nLevels, Math.min(maxHeight, REFINEMENT_WINDOW));
+		int levels = nLevels;
+		// each thread builds (from a full resolution plane) and holds the
+		// pyramids of its pair
+		long bytesPerThread = PhaseCorrelation.workspaceBytes(regionWidth, regionHeight) + 4L * maxPixels + 2 * pyramidBytes(maxPixels, nLevels);
+
+		PairTable table = engine.registerCached(images, positions, StitchingUtils.overlappingPairs(images, positions, minOverlap, engine.getLogger()), params, "coarse-to-fine|binning=" + (1 << nLevels), missing -> {
+			// binned copies of the registration channel, only of the tiles that
+			// still need to be registered
+			Pyramid[] pyramids = new Pyramid[images.size()];
+			for (int[] pair : missing) {
+				for (int i : pair) {
+					if (pyramids[i] == null) pyramids[i] = new Pyramid();
+					pyramids[i].references.incrementAndGet();
+				}
+			}
+			return engine.registerPairs(missing, 2, bytesPerThread, (i, j) -> {
+				try {
+					List<FloatProcessor> pyramid1 = pyramids[i].get(() -> buildPyramid(RegistrationEngine.registrationPlane(images.get(i), params.channel1, null), levels));
+					List<FloatProcessor> pyramid2 = pyramids[j].get(() -> buildPyramid(RegistrationEngine.registrationPlane(images.get(j), params.channel1, null), levels));
+					double[] shift = { positions.get(j)[0] - positions.get(i)[0], positions.get(j)[1] - positions.get(i)[1] };
+					PhaseCorrelation workspace = engine.workspace(regionWidth, regionHeight);
+					Float r = refineShift(images.get(i), images.get(j), pyramid1, pyramid2, shift, params.channel1, params, workspace);
+					return r == null ? null : new float[] { (float) shift[0], (float) shift[1], r };
+				}
+				finally {
+					pyramids[i].release();
+					pyramids[j].release();
+				}
+			});
+		});
+
+		return GlobalAlignment.optimize(table, positions, params, engine.getLogger());
+	}
+
+	/**
+	 * Estimate the shift of tile 2 relative to tile 1, starting with the
+	 * coarsest level and refining on each finer level.
+	 * 
+	 * @param shift Initial shift, updated in place
+	 * @return Cross correlation of the finest level, or {@code null} if no level
+	 *         could be registered
+	 */
+	private static Float refineShift(ImagePlus imp1, ImagePlus imp2, List<FloatProcessor> pyramid1, List<FloatProcessor> pyramid2, double[] shift, int channel, StitchingParameters params, PhaseCorrelation workspace) {
+		Float r = null;
+		for (int level = pyramid1.size(); level >= 0; level--) {
+			int f = 1 << level;
+			Rectangle region1 = overlap(shift, imp1, imp2);
+			if (region1 == null) return null;
+			if (r != null) {
+				// the remaining error is a few pixels, search in a small window only
+				int window = REFINEMENT_WINDOW * f;
+				region1 = new Rectangle(region1.x + Math.max(0, region1.width - window) / 2, region1.y + Math.max(0, region1.height - window) / 2, Math.min(window, region1.width), Math.min(window, region1.height));
+			}
+			Rectangle binned1 = new Rectangle(region1.x / f, region1.y / f, region1.width / f, region1.height / f);
+			if (binned1.width < MIN_REGION_SIZE || binned1.height < MIN_REGION_SIZE) continue;
+
+			int dx = (int) Math.round(shift[0]);
+			int dy = (int) Math.round(shift[1]);
+			Rectangle binned2 = new Rectangle((region1.x - dx) / f, (region1.y - dy) / f, binned1.width, binned1.height);
+			binned2 = binned2.intersection(new Rectangle(imp2.getWidth() / f, imp2.getHeight() / f));
+			binned1.setSize(binned2.getSize());
+			if (binned1.width < MIN_REGION_SIZE || binned1.height < MIN_REGION_SIZE) continue;
+			if (!workspace.fits(binned1.width, binned1.height)) continue;
+
+			FloatProcessor crop1 = level == 0 ? RegistrationEngine.registrationPlane(imp1, channel, binned1) : RegistrationEngine.crop(pyramid1.get(level - 1), binned1);
+			FloatProcessor crop2 = level == 0 ? RegistrationEngine.registrationPlane(imp2, channel, binned2) : RegistrationEngine.crop(pyramid2.get(level - 1), binned2);
+			float[] result = workspace.register((float[]) crop1.getPixels(), (float[]) crop2.getPixels(), binned1.width, binned1.height, params.checkPeaks, params.subpixelAccuracy);
+			if (result == null) continue;
+			shift[0] = (binned1.x - binned2.x + result[0]) * f;
+			shift[1] = (binned1.y - binned2.y + result[1]) * f;
+			r = result[2];
+		}
+		return r;
+	}
+
+	/**
+	 * Get the overlap of two tiles in the coordinates of the first tile.
+	 * 
+	 * @return Overlapping region, or {@code null} if the tiles do not overlap
+	 */
+	private static Rectangle overlap(double[] shift, ImagePlus imp1, ImagePlus imp2) {
+		int dx = (int) Math.round(shift[0]);
+		int dy = (int) Math.round(shift[1]);
+		Rectangle region = new Rectangle(imp1.getWidth(), imp1.getHeight()).intersection(new Rectangle(dx, dy, imp2.getWidth(), imp2.getHeight()));
+		return region.isEmpty() ? null : region;
+	}
+
+	/**
+	 * Binned copies of a tile, built on first use and dropped after the last
+	 * pair using them released them.
+	 */
+	private static final class Pyramid {
+
+		private final AtomicInteger references = new AtomicInteger();
+		private List<FloatProcessor> levels;
+
+		synchronized List<FloatProcessor> get(Supplier<List<FloatProcessor>> builder) {
+			if (levels == null) levels = builder.get();
+			return levels;
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				synchronized (this) {
+					levels = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Memory (in bytes) of the binned levels of a float image
+	 */
+	private static long pyramidBytes(long nPixels, int nLevels) {
+		long bytes = 0;
+		for (int level = 1; level <= nLevels; level++) {
+			bytes += 4 * (nPixels >> (2 * level));
+		}
+		return bytes;
+	}
+
+	/**
+	 * Build a pyramid of 2x binned images.
+	 * 
+	 * @param ip Full resolution image
+	 * @param nLevels Number of binned levels
+	 * @return List of binned images, the first one binned by 2
+	 */
+	static List<FloatProcessor> buildPyramid(FloatProcessor ip, int nLevels) {
+		List<FloatProcessor> pyramid = new ArrayList<>();
+		ImageProcessor level = ip;
+		for (int i = 0; i < nLevels; i++) {
+			level = level.bin(2);
+			pyramid.add((FloatProcessor) level);
+		}
+		return pyramid;
+	}
+}
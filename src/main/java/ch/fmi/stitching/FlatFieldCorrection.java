@@ -0,0 +1,411 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Flat-field and dark-field correction of tiles.
+ * <p>
+ * Each plane is corrected as {@code (raw - dark) * inverseFlat * scale} in a
+ * single pass, with the inverse of the normalized flat field computed once per
+ * channel. The arithmetic is done in float, and the result is written back in
+ * the native type of the tile with saturating rounding, unless the tiles are
+ * converted to 32-bit.
+ * </p>
+ * <p>
+ * Alternatively, {@link #view(ImagePlus)} provides a corrected view of a tile,
+ * computing the corrected values whenever pixels are read.
+ * </p>
+ */
+public class FlatFieldCorrection {
+
+	private final int width;
+	private final int height;
+	private final float[][] inverseFlat;
+	private final float[][] dark;
+	private final boolean convertToFloat;
+
+	/**
+	 * Create a correction for tiles with a given number of channels, keeping
+	 * the bit depth of the tiles.
+	 * 
+	 * @param inverseFlatField Inverse of the normalized flat field, with either
+	 *          one plane per channel or a single plane for all channels
+	 * @param darkField Dark field, with either one plane per channel or a single
+	 *          plane for all channels, or {@code null}
+	 * @param nChannels Number of channels of the tiles
+	 */
+	public FlatFieldCorrection(ImagePlus inverseFlatField, ImagePlus darkField, int nChannels) {
+		this(inverseFlatField, darkField, nChannels, 1f, false);
+	}
+
+	/**
+	 * Create a correction for tiles with a given number of channels.
+	 * 
+	 * @param inverseFlatField Inverse of the normalized flat field, with either
+	 *          one plane per channel or a single plane for all channels
+	 * @param darkField Dark field, with either one plane per channel or a single
+	 *          plane for all channels, or {@code null}
+	 * @param nChannels Number of channels of the tiles
+	 * @param scale Factor applied to the corrected intensities
+	 * @param convertToFloat If true, convert 8-bit and 16-bit tiles to 32-bit;
+	 *          if false, keep their bit depth and saturate the corrected values
+	 */
+	public FlatFieldCorrection(ImagePlus inverseFlatField, ImagePlus darkField, int nChannels, float scale, boolean convertToFloat) {
+		this(inverseFlatField.getWidth(), inverseFlatField.getHeight(), channelPlanes(inverseFlatField, nChannels), darkField == null ? null : channelPlanes(darkField, nChannels), scale, convertToFloat);
+	}
+
+	/**
+	 * Create a correction from per-channel planes, e.g. from stored profiles.
+	 * The planes are not modified.
+	 * 
+	 * @param width Width of the tiles
+	 * @param height Height of the tiles
+	 * @param inverseFlat Inverse of the normalized flat field, per channel
+	 * @param dark Dark field, per channel, or {@code null}
+	 * @param scale Factor applied to the corrected intensities
+	 * @param convertToFloat If true, convert 8-bit and 16-bit tiles to 32-bit;
+	 *          if false, keep their bit depth and saturate the corrected values
+	 */
+	public FlatFieldCorrection(int width, int height, float[][] inverseFlat, float[][] dark, float scale, boolean convertToFloat) {
+		this.width = width;
+		this.height = height;
+		this.convertToFloat = convertToFloat;
+		int nChannels = inverseFlat.length;
+		this.inverseFlat = new float[nChannels][];
+		for (int c = 0; c < nChannels; c++) {
+			if (inverseFlat[c].length != width * height || (dark != null && dark[c].length != width * height)) {
+				throw new IllegalArgumentException("The reference images must have the same size as the flat field reference.");
+			}
+			if (c > 0 && inverseFlat[c] == inverseFlat[c - 1]) {
+				this.inverseFlat[c] = this.inverseFlat[c - 1];
+			} else if (scale != 1f) {
+				// fold the scale into a copy of the plane, so the reference stays untouched
+				this.inverseFlat[c] = inverseFlat[c].clone();
+				for (int i = 0; i < width * height; i++) this.inverseFlat[c][i] *= scale;
+			} else {
+				this.inverseFlat[c] = inverseFlat[c];
+			}
+		}
+		if (dark != null) {
+			this.dark = dark.clone();
+		} else {
+			// subtracting zeros keeps the correction loop free of branches
+			this.dark = new float[nChannels][];
+			float[] zeros = new float[width * height];
+			for (int c = 0; c < nChannels; c++) this.dark[c] = zeros;
+		}
+	}
+
+	/**
+	 * Normalize a flat field to a maximum of 1 and invert it in place. Pixels
+	 * without signal are set to 0.
+	 * 
+	 * @param flatField 32-bit flat field
+	 */
+	public static void invert(ImagePlus flatField) {
+		ImageStack stack = flatField.getStack();
+		for (int i = 1; i <= stack.getSize(); i++) {
+			float[] pixels = (float[]) stack.getPixels(i);
+			float max = 0;
+			for (float v : pixels) max = Math.max(max, v);
+			for (int j = 0; j < pixels.length; j++) {
+				pixels[j] = pixels[j] > 0 ? max / pixels[j] : 0;
+			}
+		}
+	}
+
+	/**
+	 * Correct all planes of a tile in place. Tiles that are converted to 32-bit
+	 * or backed by a virtual stack get their stack replaced by the corrected
+	 * planes.
+	 * 
+	 * @param imp Tile to correct
+	 * @param nThreads Number of planes corrected in parallel
+	 * @throws IOException if the correction of a plane failed
+	 */
+	public void apply(ImagePlus imp, int nThreads) throws IOException {
+		if (imp.getWidth() != width || imp.getHeight() != height) {
+			throw new IllegalArgumentException("The reference images (" + width + "x" + height + ") must have the same size as the tiles (" + imp.getWidth() + "x" + imp.getHeight() + ").");
+		}
+		ImageStack stack = imp.getStack();
+		boolean toFloat = convertToFloat && imp.getBitDepth() != 32;
+		Object[] corrected = new Object[stack.getSize()];
+
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int n = 1; n <= stack.getSize(); n++) {
+			final int index = n;
+			tasks.add(() -> {
+				int c = imp.convertIndexToPosition(index)[0] - 1;
+				Object pixels = stack.getPixels(index);
+				Object out = toFloat ? new float[width * height] : pixels;
+				correctPlane(pixels, inverseFlat[c], dark[c], out);
+				corrected[index - 1] = out;
+				return null;
+			});
+		}
+		int parallelism = Math.min(nThreads, tasks.size());
+		if (parallelism <= 1) {
+			// no pool for a single thread, e.g. when tiles are corrected concurrently
+			try {
+				for (Callable<Void> task : tasks) {
+					task.call();
+				}
+			}
+			catch (Exception exc) {
+				throw new IOException("Error correcting " + imp.getTitle(), exc);
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+			try {
+				for (Future<Void> future : executor.invokeAll(tasks)) {
+					future.get();
+				}
+			}
+			catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while correcting " + imp.getTitle(), exc);
+			}
+			catch (ExecutionException exc) {
+				throw new IOException("Error correcting " + imp.getTitle(), exc.getCause());
+			}
+			finally {
+				executor.shutdown();
+			}
+		}
+
+		if (toFloat || stack.isVirtual()) {
+			// planes of virtual stacks are not kept, so collect the corrected ones
+			ImageStack result = new ImageStack(width, height);
+			for (int n = 1; n <= stack.getSize(); n++) {
+				result.addSlice(stack.getSliceLabel(n), corrected[n - 1]);
+			}
+			imp.setStack(result, imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		}
+	}
+
+	/**
+	 * Create a lazily corrected view of a tile. No corrected copy of the tile
+	 * is kept in memory; the correction is applied whenever registration or
+	 * fusion read the pixels of the view.
+	 * 
+	 * @param imp Tile to correct
+	 * @return Corrected view, with the bit depth of the tile unless tiles are
+	 *         converted to 32-bit
+	 */
+	public ImagePlus view(ImagePlus imp) {
+		return view(imp, 0, null);
+	}
+
+	/**
+	 * Create a lazily corrected view of a tile holding a subset of the
+	 * channels, of which only some regions were read (e.g. by a loader reading
+	 * the regions overlapping with neighboring tiles).
+	 * 
+	 * @param imp Tile to correct
+	 * @param firstChannel Channel (0-based) of the first channel of the tile
+	 * @param regions Regions of the tile to correct, or {@code null} to correct
+	 *          the whole tile; all other pixels are 0
+	 * @return Corrected view, with the bit depth of the tile unless tiles are
+	 *         converted to 32-bit
+	 */
+	public <T extends RealType<T>> ImagePlus view(ImagePlus imp, int firstChannel, List<Rectangle> regions) {
+		if (imp.getWidth() != width || imp.getHeight() != height) {
+			throw new IllegalArgumentException("The reference images (" + width + "x" + height + ") must have the same size as the tiles (" + imp.getWidth() + "x" + imp.getHeight() + ").");
+		}
+		int nChannels = imp.getNChannels();
+		if (firstChannel + nChannels > inverseFlat.length) {
+			throw new IllegalArgumentException("The tile has more channels than the reference images.");
+		}
+		Img<T> img = ImageJFunctions.wrapReal(imp);
+		RandomAccessibleInterval<?> corrected;
+		if (convertToFloat) {
+			corrected = correctedView(img, nChannels, firstChannel, regions, new FloatType());
+		} else {
+			corrected = correctedView(img, nChannels, firstChannel, regions, img.firstElement().createVariable());
+		}
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		ImagePlus view = ImageJFunctions.wrap((RandomAccessibleInterval) corrected, imp.getTitle());
+		view.setDimensions(nChannels, imp.getNSlices(), imp.getNFrames());
+		view.setOpenAsHyperStack(true);
+		view.setCalibration(imp.getCalibration());
+		return view;
+	}
+
+	private <T extends RealType<T>, O extends RealType<O>> RandomAccessibleInterval<O> correctedView(RandomAccessibleInterval<T> img, int nChannels, int firstChannel, List<Rectangle> regions, O type) {
+		// NB: the wrapped tile has dimensions XY, followed by C, Z and T if they are larger than 1
+		RandomAccessibleInterval<O> corrected;
+		if (nChannels == 1) {
+			corrected = correctedChannel(img, firstChannel, type);
+		} else {
+			List<RandomAccessibleInterval<O>> channels = new ArrayList<>();
+			for (int c = 0; c < nChannels; c++) {
+				channels.add(correctedChannel(Views.hyperSlice(img, 2, c), firstChannel + c, type));
+			}
+			corrected = Views.moveAxis(Views.stack(channels), img.numDimensions() - 1, 2);
+		}
+		return regions == null ? corrected : restrict(corrected, regions, type);
+	}
+
+	/**
+	 * Set all pixels outside of the given regions to 0, as in tiles of which
+	 * only these regions were read.
+	 */
+	private static <O extends RealType<O>> RandomAccessibleInterval<O> restrict(RandomAccessibleInterval<O> img, List<Rectangle> regions, O type) {
+		return Converters.convert(img, Intervals.positions(img), (value, position, out) -> {
+			int x = position.getIntPosition(0);
+			int y = position.getIntPosition(1);
+			for (Rectangle region : regions) {
+				if (region.contains(x, y)) {
+					out.set(value);
+					return;
+				}
+			}
+			out.setZero();
+		}, type.createVariable());
+	}
+
+	private <T extends RealType<T>, O extends RealType<O>> RandomAccessibleInterval<O> correctedChannel(RandomAccessibleInterval<T> channel, int c, O type) {
+		RandomAccessibleInterval<FloatType> darkPlane = extend(ArrayImgs.floats(dark[c], width, height), channel);
+		RandomAccessibleInterval<FloatType> inverseFlatPlane = extend(ArrayImgs.floats(inverseFlat[c], width, height), channel);
+		RandomAccessibleInterval<FloatType> subtracted = Converters.convert(channel, darkPlane, (raw, d, out) -> out.set(raw.getRealFloat() - d.get()), new FloatType());
+		boolean round = !(type instanceof FloatType);
+		double min = type.getMinValue();
+		double max = type.getMaxValue();
+		return Converters.convert(subtracted, inverseFlatPlane, (v, inv, out) -> {
+			float value = v.get() * inv.get();
+			out.setReal(!round ? value : value <= min ? min : value >= max ? max : Math.floor(value + 0.5));
+		}, type);
+	}
+
+	/**
+	 * Repeat a plane along all dimensions of a channel beyond XY.
+	 */
+	private static <T> RandomAccessibleInterval<T> extend(RandomAccessibleInterval<T> plane, RandomAccessibleInterval<?> channel) {
+		RandomAccessibleInterval<T> extended = plane;
+		for (int d = 2; d < channel.numDimensions(); d++) {
+			extended = Views.addDimension(extended, channel.min(d), channel.max(d));
+		}
+		return extended;
+	}
+
+	/**
+	 * Compute {@code (raw - dark) * inverseFlat} for a single plane.
+	 * 
+	 * @param pixels Raw pixels ({@code byte[]}, {@code short[]} or
+	 *          {@code float[]})
+	 * @param inverseFlat Inverse flat field
+	 * @param dark Dark field
+	 * @param out Corrected pixels, either a {@code float[]} or the same array as
+	 *          {@code pixels}
+	 */
+	static void correctPlane(Object pixels, float[] inverseFlat, float[] dark, Object out) {
+		if (out instanceof float[]) {
+			correctToFloat(pixels, inverseFlat, dark, (float[]) out);
+		} else if (pixels instanceof byte[] && out == pixels) {
+			byte[] raw = (byte[]) pixels;
+			for (int i = 0; i < raw.length; i++) {
+				float v = ((raw[i] & 0xff) - dark[i]) * inverseFlat[i];
+				raw[i] = (byte) (v <= 0 ? 0 : v >= 255 ? 255 : (int) (v + 0.5f));
+			}
+		} else if (pixels instanceof short[] && out == pixels) {
+			short[] raw = (short[]) pixels;
+			for (int i = 0; i < raw.length; i++) {
+				float v = ((raw[i] & 0xffff) - dark[i]) * inverseFlat[i];
+				raw[i] = (short) (v <= 0 ? 0 : v >= 65535 ? 65535 : (int) (v + 0.5f));
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported pixel type for illumination correction");
+		}
+	}
+
+	private static void correctToFloat(Object pixels, float[] inverseFlat, float[] dark, float[] out) {
+		if (pixels instanceof byte[]) {
+			byte[] raw = (byte[]) pixels;
+			for (int i = 0; i < out.length; i++) {
+				out[i] = ((raw[i] & 0xff) - dark[i]) * inverseFlat[i];
+			}
+		} else if (pixels instanceof short[]) {
+			short[] raw = (short[]) pixels;
+			for (int i = 0; i < out.length; i++) {
+				out[i] = ((raw[i] & 0xffff) - dark[i]) * inverseFlat[i];
+			}
+		} else if (pixels instanceof float[]) {
+			float[] raw = (float[]) pixels;
+			for (int i = 0; i < out.length; i++) {
+				out[i] = (raw[i] - dark[i]) * inverseFlat[i];
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported pixel type for illumination correction");
+		}
+	}
+
+	/**
+	 * Get the planes of a reference image per channel, as {@code float[]}.
+	 * 
+	 * @param reference Reference image, with either one plane per channel or a
+	 *          single plane for all channels
+	 * @param nChannels Number of channels of the tiles
+	 * @return One plane per channel (shared if the reference has a single plane)
+	 */
+	public static float[][] channelPlanes(ImagePlus reference, int nChannels) {
+		if (reference.getNChannels() > 1 && reference.getNChannels() != nChannels) {
+			throw new IllegalArgumentException("The number of channels of the reference images must be equal to the number of channels in the tiles, or 1.");
+		}
+		float[][] planes = new float[nChannels][];
+		ImageStack stack = reference.getStack();
+		for (int c = 0; c < nChannels; c++) {
+			if (c > 0 && reference.getNChannels() == 1) {
+				planes[c] = planes[0];
+				continue;
+			}
+			ImageProcessor ip = stack.getProcessor(reference.getStackIndex(c + 1, 1, 1));
+			planes[c] = (float[]) ip.convertToFloat().getPixels();
+		}
+		return planes;
+	}
+}
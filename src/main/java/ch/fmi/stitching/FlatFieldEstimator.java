@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+/**
+ * Streaming estimator of per-channel flat fields from the tiles of a dataset.
+ * <p>
+ * Planes are added one at a time, in any order and from several threads. For
+ * every channel, the per-pixel mean is accumulated, as well as a fixed-size
+ * histogram of the pixel values in each block of {@code blockSize x blockSize}
+ * pixels, from which a robust low percentile (e.g. the background level) is
+ * estimated per block and interpolated to full resolution. Memory depends on
+ * the plane size only, not on the number of tiles.
+ * </p>
+ * <p>
+ * Histogram bins are spaced on a square root scale between 0 and the maximum
+ * value, to resolve low intensities more finely; larger values are counted in
+ * the last bin.
+ * </p>
+ */
+public class FlatFieldEstimator {
+
+	/** Default size (in pixels) of the blocks sharing a histogram */
+	public static final int DEFAULT_BLOCK_SIZE = 32;
+
+	/** Number of histogram bins per block */
+	public static final int N_BINS = 256;
+
+	private final int width;
+	private final int height;
+	private final int blockSize;
+	private final int nBlocksX;
+	private final double maxValue;
+
+	private final double[][] sums;
+	private final int[][] histograms;
+	private final int[] counts;
+
+	/**
+	 * @param width Width of the planes
+	 * @param height Height of the planes
+	 * @param nChannels Number of channels
+	 * @param blockSize Size (in pixels) of the blocks sharing a histogram
+	 * @param maxValue Upper limit of the histograms, e.g. the maximum value of
+	 *          the pixel type
+	 */
+	public FlatFieldEstimator(int width, int height, int nChannels, int blockSize, double maxValue) {
+		this.width = width;
+		this.height = height;
+		this.blockSize = blockSize;
+		this.maxValue = maxValue;
+		nBlocksX = (width + blockSize - 1) / blockSize;
+		int nBlocksY = (height + blockSize - 1) / blockSize;
+		sums = new double[nChannels][width * height];
+		histograms = new int[nChannels][nBlocksX * nBlocksY * N_BINS];
+		counts = new int[nChannels];
+	}
+
+	/**
+	 * Add a plane of a channel to the statistics.
+	 * 
+	 * @param c Channel (0-based)
+	 * @param pixels Plane pixels ({@code byte[]}, {@code short[]} or
+	 *          {@code float[]}, unsigned for the integer types)
+	 */
+	public void add(int c, Object pixels) {
+		double[] sum = sums[c];
+		int[] histogram = histograms[c];
+		float[] row = new float[width];
+		synchronized (sum) {
+			for (int y = 0; y < height; y++) {
+				readRow(pixels, y * width, row);
+				int blockOffset = (y / blockSize) * nBlocksX * N_BINS;
+				for (int x = 0; x < width; x++) {
+					sum[y * width + x] += row[x];
+					histogram[blockOffset + (x / blockSize) * N_BINS + bin(row[x])]++;
+				}
+			}
+			counts[c]++;
+		}
+	}
+
+	/**
+	 * @param c Channel (0-based)
+	 * @return Number of planes added for this channel
+	 */
+	public int getCount(int c) {
+		synchronized (sums[c]) {
+			return counts[c];
+		}
+	}
+
+	/**
+	 * @param c Channel (0-based)
+	 * @return Per-pixel mean of the added planes
+	 */
+	public float[] getMean(int c) {
+		double[] sum = sums[c];
+		float[] mean = new float[width * height];
+		synchronized (sum) {
+			for (int i = 0; i < mean.length; i++) {
+				mean[i] = (float) (sum[i] / counts[c]);
+			}
+		}
+		return mean;
+	}
+
+	/**
+	 * Estimate a percentile of the pixel values per block, bilinearly
+	 * interpolated between the block centers.
+	 * 
+	 * @param c Channel (0-based)
+	 * @param percentile Percentile between 0 and 1 (e.g. 0.1)
+	 * @return Percentile estimate at full resolution
+	 */
+	public float[] getPercentile(int c, double percentile) {
+		if (percentile < 0 || percentile > 1) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 1: " + percentile);
+		}
+		int nBlocksY = histograms[c].length / N_BINS / nBlocksX;
+		float[] blocks = new float[nBlocksX * nBlocksY];
+		synchronized (sums[c]) {
+			int[] histogram = histograms[c];
+			for (int b = 0; b < blocks.length; b++) {
+				long total = 0;
+				for (int k = 0; k < N_BINS; k++) total += histogram[b * N_BINS + k];
+				double target = percentile * total;
+				long cumulative = 0;
+				int k = 0;
+				while (k < N_BINS - 1 && (cumulative += histogram[b * N_BINS + k]) < target) k++;
+				blocks[b] = (float) binCenter(k);
+			}
+		}
+
+		// interpolate between block centers, keeping the value of the outermost blocks at the borders
+		int[] x0 = new int[width];
+		float[] wx = new float[width];
+		interpolationWeights(width, nBlocksX, x0, wx);
+		int[] y0 = new int[height];
+		float[] wy = new float[height];
+		interpolationWeights(height, nBlocksY, y0, wy);
+		float[] result = new float[width * height];
+		for (int y = 0; y < height; y++) {
+			int row0 = y0[y] * nBlocksX;
+			int row1 = Math.min(y0[y] + 1, nBlocksY - 1) * nBlocksX;
+			for (int x = 0; x < width; x++) {
+				int x1 = Math.min(x0[x] + 1, nBlocksX - 1);
+				float top = blocks[row0 + x0[x]] * (1 - wx[x]) + blocks[row0 + x1] * wx[x];
+				float bottom = blocks[row1 + x0[x]] * (1 - wx[x]) + blocks[row1 + x1] * wx[x];
+				result[y * width + x] = top * (1 - wy[y]) + bottom * wy[y];
+			}
+		}
+		return result;
+	}
+
+	private void interpolationWeights(int size, int nBlocks, int[] lower, float[] weight) {
+		double[] centers = new double[nBlocks];
+		for (int b = 0; b < nBlocks; b++) {
+			centers[b] = b * blockSize + (Math.min(blockSize, size - b * blockSize) - 1) / 2.0;
+		}
+		int b = 0;
+		for (int i = 0; i < size; i++) {
+			while (b < nBlocks - 1 && centers[b + 1] <= i) b++;
+			lower[i] = b;
+			if (b == nBlocks - 1 || i <= centers[b]) {
+				weight[i] = 0;
+			} else {
+				weight[i] = (float) ((i - centers[b]) / (centers[b + 1] - centers[b]));
+			}
+		}
+	}
+
+	private int bin(double v) {
+		if (v <= 0) return 0;
+		return Math.min(N_BINS - 1, (int) (N_BINS * Math.sqrt(v / maxValue)));
+	}
+
+	private double binCenter(int k) {
+		double r = (k + 0.5) / N_BINS;
+		return maxValue * r * r;
+	}
+
+	private static void readRow(Object pixels, int offset, float[] row) {
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int x = 0; x < row.length; x++) row[x] = p[offset + x] & 0xff;
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int x = 0; x < row.length; x++) row[x] = p[offset + x] & 0xffff;
+		} else {
+			System.arraycopy((float[]) pixels, offset, row, 0, row.length);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.algorithm.localization.Gaussian;
+import net.imglib2.algorithm.localization.LevenbergMarquardtSolver;
+import net.imglib2.algorithm.localization.MLGaussianEstimator;
+import net.imglib2.algorithm.localization.PeakFitter;
+import net.imglib2.img.ImagePlusAdapter;
+
+/**
+ * Estimation of an illumination field as an isotropic 2D Gaussian.
+ * <p>
+ * The Gaussian is fitted on a binned copy of the illumination image, and
+ * rendered at full resolution as the outer product of its x and y profiles.
+ * Parameters are given as {@code [x0, y0, amplitude, b]}, with the Gaussian
+ * being {@code amplitude * exp(-b * ((x - x0)^2 + (y - y0)^2))}, as in
+ * {@link Gaussian}.
+ * </p>
+ */
+public class GaussianIlluminationField {
+
+	/** Approximate size (in pixels) of the binned image used for fitting */
+	public static final int FIT_SIZE = 64;
+
+	private GaussianIlluminationField() {
+		// prevent instantiation of static utility class
+	}
+
+	/**
+	 * Fit an isotropic Gaussian to an illumination image.
+	 * 
+	 * @param illumination Illumination image, e.g. a mean projection of tiles
+	 * @return Gaussian parameters in full resolution pixel coordinates
+	 */
+	public static double[] fit(ImageProcessor illumination) {
+		int binning = Math.max(1, Math.max(illumination.getWidth(), illumination.getHeight()) / FIT_SIZE);
+		ImageProcessor binned = binning > 1 ? illumination.convertToFloat().bin(binning) : illumination.convertToFloat();
+
+		Localizable center = new Point(new long[] { binned.getWidth() / 2, binned.getHeight() / 2 });
+		PeakFitter<?> fitter = new PeakFitter<>(ImagePlusAdapter.wrapFloat(new ImagePlus("binned illumination", binned)), Arrays.asList(center),
+			new LevenbergMarquardtSolver(), new Gaussian(), new MLGaussianEstimator(binned.getWidth() / 3.0, 2));
+		if (!fitter.checkInput() || !fitter.process()) {
+			throw new RuntimeException("Could not fit Gaussian to illumination field");
+		}
+		double[] params = fitter.getResult().get(center).clone();
+
+		// binned pixel k covers full resolution pixels [k * binning, (k + 1) * binning)
+		params[0] = params[0] * binning + (binning - 1) / 2.0;
+		params[1] = params[1] * binning + (binning - 1) / 2.0;
+		params[3] /= (double) binning * binning;
+		return params;
+	}
+
+	/**
+	 * Render a Gaussian as the outer product of its x and y profiles.
+	 * 
+	 * @param params Gaussian parameters {@code [x0, y0, amplitude, b]}
+	 * @param width Width of the rendered field
+	 * @param height Height of the rendered field
+	 * @param nThreads Number of threads rendering rows in parallel
+	 * @return Rendered illumination field
+	 */
+	public static FloatProcessor render(double[] params, int width, int height, int nThreads) {
+		return new FloatProcessor(width, height, renderPixels(params, width, height, nThreads));
+	}
+
+	static float[] renderPixels(double[] params, int width, int height, int nThreads) {
+		float[] xProfile = profile(params[0], 1.0, params[3], width);
+		float[] yProfile = profile(params[1], params[2], params[3], height);
+		float[] pixels = new float[width * height];
+
+		int nBlocks = Math.max(1, Math.min(nThreads, height));
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int b = 0; b < nBlocks; b++) {
+			final int firstRow = b * height / nBlocks;
+			final int lastRow = (b + 1) * height / nBlocks;
+			tasks.add(() -> {
+				for (int y = firstRow; y < lastRow; y++) {
+					float fy = yProfile[y];
+					int offset = y * width;
+					for (int x = 0; x < width; x++) {
+						pixels[offset + x] = fy * xProfile[x];
+					}
+				}
+				return null;
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(nBlocks);
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while rendering illumination field", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new RuntimeException("Error rendering illumination field", exc.getCause());
+		}
+		finally {
+			executor.shutdown();
+		}
+		return pixels;
+	}
+
+	private static float[] profile(double center, double amplitude, double b, int size) {
+		float[] profile = new float[size];
+		for (int i = 0; i < size; i++) {
+			double d = i - center;
+			profile[i] = (float) (amplitude * Math.exp(-b * d * d));
+		}
+		return profile;
+	}
+}
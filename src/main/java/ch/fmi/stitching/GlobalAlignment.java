@@ -0,0 +1,344 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.stitching.StitchingParameters;
+
+import org.scijava.log.Logger;
+
+/**
+ * Global alignment of translated tiles from pairwise shifts.
+ * <p>
+ * The tile positions minimize the weighted squared error of all valid pairwise
+ * shifts, plus a weak prior pulling every tile towards its known position,
+ * which places tiles without valid links and keeps separate groups of tiles
+ * where the stage put them. The resulting sparse normal equations are solved
+ * per dimension by Jacobi-preconditioned conjugate gradients, directly on the
+ * list of links. Links that disagree with the solution are down-weighted by
+ * iteratively reweighted least squares with Huber weights, and links whose
+ * error still exceeds the threshold are dropped.
+ * </p>
+ */
+public class GlobalAlignment {
+
+	/** Maximum number of reweighting iterations */
+	public static final int MAX_ITERATIONS = 50;
+
+	/** Default error (in pixels) below which a link is never dropped */
+	public static final double DEFAULT_ABSOLUTE_THRESHOLD = 3.5;
+
+	/** Default error (relative to the mean error) above which a link is dropped */
+	public static final double DEFAULT_RELATIVE_THRESHOLD = 2.5;
+
+	/** Weight of the prior, relative to the mean link weight */
+	private static final double PRIOR_WEIGHT = 1e-6;
+
+	private static final double CG_TOLERANCE = 1e-10;
+
+	private final int nTiles;
+	private final int dimensionality;
+	private final int[] first;
+	private final int[] second;
+	private final double[] shifts;
+	private final double[] correlations;
+	private final double[] weights;
+	private final boolean[] dropped;
+	private final double absoluteThreshold;
+	private final double relativeThreshold;
+	private int nIterations;
+
+	/**
+	 * @param table Pairwise registration results
+	 * @param nTiles Number of tiles
+	 * @param threshold Minimum correlation of a valid link
+	 * @param absoluteThreshold Error (in pixels) below which a link is never
+	 *          dropped
+	 * @param relativeThreshold Error (relative to the mean error) above which a
+	 *          link is dropped
+	 */
+	public GlobalAlignment(PairTable table, int nTiles, double threshold, double absoluteThreshold, double relativeThreshold) {
+		this.nTiles = nTiles;
+		this.dimensionality = table.getDimensionality();
+		this.absoluteThreshold = absoluteThreshold;
+		this.relativeThreshold = relativeThreshold;
+		int nLinks = 0;
+		for (int k = 0; k < table.size(); k++) {
+			if (table.isValid(k, threshold)) nLinks++;
+		}
+		first = new int[nLinks];
+		second = new int[nLinks];
+		shifts = new double[dimensionality * nLinks];
+		correlations = new double[nLinks];
+		weights = new double[nLinks];
+		dropped = new boolean[nLinks];
+		for (int k = 0, l = 0; k < table.size(); k++) {
+			if (!table.isValid(k, threshold)) continue;
+			first[l] = table.getTile1(k);
+			second[l] = table.getTile2(k);
+			for (int d = 0; d < dimensionality; d++) {
+				shifts[dimensionality * l + d] = table.getShift(k, d);
+			}
+			// keep a minimal weight for links accepted at a threshold of 0 or below
+			correlations[l] = Math.max(table.getCorrelation(k), 1e-3);
+			l++;
+		}
+	}
+
+	/**
+	 * Compute optimal tile positions from the results of a pairwise
+	 * registration.
+	 * 
+	 * @param table Pairwise registration results
+	 * @param positions List of known positions
+	 * @param params {@link StitchingParameters} defining the options for
+	 *          stitching
+	 * @param log {@link Logger} reporting the number of dropped links, or
+	 *          {@code null}
+	 * @return List of transformation models
+	 */
+	public static ArrayList<InvertibleBoundable> optimize(PairTable table, List<float[]> positions, StitchingParameters params, Logger log) {
+		GlobalAlignment alignment = new GlobalAlignment(table, positions.size(), params.regThreshold, params.absoluteThreshold > 0 ? params.absoluteThreshold : DEFAULT_ABSOLUTE_THRESHOLD, params.relativeThreshold > 0 ? params.relativeThreshold : DEFAULT_RELATIVE_THRESHOLD);
+		double[] solution = alignment.solve(positions);
+		if (log != null) log.info("Global alignment: " + alignment.getLinkCount() + " links, " + alignment.getDroppedCount() + " dropped after " + alignment.getIterationCount() + " iterations");
+		ArrayList<InvertibleBoundable> models = new ArrayList<>();
+		for (int i = 0; i < positions.size(); i++) {
+			if (table.getDimensionality() == 2) {
+				TranslationModel2D model = new TranslationModel2D();
+				model.set(solution[2 * i], solution[2 * i + 1]);
+				models.add(model);
+			} else {
+				TranslationModel3D model = new TranslationModel3D();
+				model.set(solution[3 * i], solution[3 * i + 1], solution[3 * i + 2]);
+				models.add(model);
+			}
+		}
+		return models;
+	}
+
+	/**
+	 * Solve for the tile positions, reweighting the links until their weights
+	 * no longer change and no further link exceeds the threshold.
+	 * 
+	 * @param positions List of known positions (2D; missing dimensions are 0)
+	 * @return Positions, {@code dimensionality} values per tile
+	 */
+	public double[] solve(List<float[]> positions) {
+		int n = nTiles;
+		double[] prior = new double[dimensionality * n];
+		for (int i = 0; i < n; i++) {
+			float[] p = positions.get(i);
+			for (int d = 0; d < Math.min(dimensionality, p.length); d++) {
+				prior[dimensionality * i + d] = p[d];
+			}
+		}
+		double[] solution = prior.clone();
+		Arrays.fill(dropped, false);
+		for (int l = 0; l < weights.length; l++) {
+			weights[l] = correlations[l];
+		}
+
+		// Huber weights until the solution is stable, so that single outliers
+		// cannot pull their neighbours away; then drop the links beyond the
+		// threshold and start over with the remaining ones
+		double[] errors = new double[weights.length];
+		for (nIterations = 1; nIterations <= MAX_ITERATIONS; nIterations++) {
+			solveWeighted(prior, solution);
+
+			double sum = 0;
+			int active = 0;
+			double change = 0;
+			for (int l = 0; l < weights.length; l++) {
+				if (dropped[l]) continue;
+				errors[l] = error(solution, l);
+				sum += errors[l];
+				active++;
+				double w = correlations[l] * Math.min(1, absoluteThreshold / Math.max(
+					errors[l], 1e-12));
+				change = Math.max(change, Math.abs(w - weights[l]) / correlations[l]);
+				weights[l] = w;
+			}
+			if (active == 0) break;
+			if (change >= 1e-3) continue;
+
+			double cutoff = Math.max(absoluteThreshold, relativeThreshold * sum /
+				active);
+			boolean converged = true;
+			for (int l = 0; l < weights.length; l++) {
+				if (!dropped[l] && errors[l] > cutoff) {
+					dropped[l] = true;
+					weights[l] = 0;
+					converged = false;
+				}
+			}
+			if (converged) break;
+		}
+		return solution;
+	}
+
+	/**
+	 * @return Number of links dropped by the last {@link #solve}
+	 */
+	public int getDroppedCount() {
+		int count = 0;
+		for (boolean d : dropped) {
+			if (d) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return Number of reweighting iterations of the last {@link #solve}
+	 */
+	public int getIterationCount() {
+		return Math.min(nIterations, MAX_ITERATIONS);
+	}
+
+	/**
+	 * @return Number of valid links
+	 */
+	public int getLinkCount() {
+		return weights.length;
+	}
+
+	private double error(double[] x, int l) {
+		double sum = 0;
+		for (int d = 0; d < dimensionality; d++) {
+			double e = x[dimensionality * second[l] + d] - x[dimensionality * first[l] + d] - shifts[dimensionality * l + d];
+			sum += e * e;
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Solve the normal equations {@code (L + lambda I) x = b} of the current
+	 * weights, where {@code L} is the weighted Laplacian of the link graph,
+	 * separately for each dimension.
+	 * 
+	 * @param prior Known positions
+	 * @param x Initial guess, overwritten with the solution
+	 */
+	private void solveWeighted(double[] prior, double[] x) {
+		int n = nTiles;
+		double meanWeight = 0;
+		for (double w : weights) meanWeight += w;
+		meanWeight = weights.length > 0 && meanWeight > 0 ? meanWeight / weights.length : 1;
+		double lambda = PRIOR_WEIGHT * meanWeight;
+
+		double[] diagonal = new double[n];
+		Arrays.fill(diagonal, lambda);
+		for (int l = 0; l < weights.length; l++) {
+			diagonal[first[l]] += weights[l];
+			diagonal[second[l]] += weights[l];
+		}
+
+		double[] b = new double[n];
+		double[] xd = new double[n];
+		double[] r = new double[n];
+		double[] z = new double[n];
+		double[] p = new double[n];
+		double[] q = new double[n];
+		for (int d = 0; d < dimensionality; d++) {
+			for (int i = 0; i < n; i++) {
+				b[i] = lambda * prior[dimensionality * i + d];
+				xd[i] = x[dimensionality * i + d];
+			}
+			for (int l = 0; l < weights.length; l++) {
+				double ws = weights[l] * shifts[dimensionality * l + d];
+				b[first[l]] -= ws;
+				b[second[l]] += ws;
+			}
+			conjugateGradient(lambda, diagonal, b, xd, r, z, p, q);
+			for (int i = 0; i < n; i++) {
+				x[dimensionality * i + d] = xd[i];
+			}
+		}
+	}
+
+	/**
+	 * Jacobi-preconditioned conjugate gradients, with work arrays passed in.
+	 */
+	private void conjugateGradient(double lambda, double[] diagonal, double[] b, double[] x, double[] r, double[] z, double[] p, double[] q) {
+		int n = x.length;
+		multiply(lambda, x, q);
+		double bNorm = 0;
+		for (int i = 0; i < n; i++) {
+			r[i] = b[i] - q[i];
+			z[i] = r[i] / diagonal[i];
+			p[i] = z[i];
+			bNorm += b[i] * b[i];
+		}
+		double tolerance = CG_TOLERANCE * CG_TOLERANCE * Math.max(bNorm, 1);
+		double rz = dot(r, z);
+		int maxIterations = Math.max(100, 10 * n);
+		for (int iteration = 0; iteration < maxIterations; iteration++) {
+			if (dot(r, r) <= tolerance) break;
+			multiply(lambda, p, q);
+			double alpha = rz / dot(p, q);
+			for (int i = 0; i < n; i++) {
+				x[i] += alpha * p[i];
+				r[i] -= alpha * q[i];
+				z[i] = r[i] / diagonal[i];
+			}
+			double rzNext = dot(r, z);
+			double beta = rzNext / rz;
+			rz = rzNext;
+			for (int i = 0; i < n; i++) {
+				p[i] = z[i] + beta * p[i];
+			}
+		}
+	}
+
+	/**
+	 * Compute {@code y = (L + lambda I) x} from the list of links.
+	 */
+	private void multiply(double lambda, double[] x, double[] y) {
+		for (int i = 0; i < x.length; i++) {
+			y[i] = lambda * x[i];
+		}
+		for (int l = 0; l < weights.length; l++) {
+			double w = weights[l];
+			if (w == 0) continue;
+			int i = first[l];
+			int j = second[l];
+			double v = w * (x[i] - x[j]);
+			y[i] += v;
+			y[j] -= v;
+		}
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+}
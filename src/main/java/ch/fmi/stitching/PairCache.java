@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import mpicbg.stitching.StitchingParameters;
+
+/**
+ * Persistent cache of pairwise registration results.
+ * <p>
+ * Results are keyed by a fingerprint of both tiles and their predicted
+ * relative position, and grouped by the registration parameters, so that they
+ * stay valid as long as neither the tiles nor the registration settings
+ * change. All results of one set of parameters are stored in a single file,
+ * which keeps only the most recently stored results.
+ * </p>
+ */
+public class PairCache {
+
+	/**
+	 * Name of the {@link ImagePlus} property identifying the source of a tile,
+	 * see {@link #source}
+	 */
+	public static final String SOURCE_PROPERTY = "PairCache.source";
+
+	/** Maximum number of pixels sampled per plane for the fingerprint of a tile */
+	public static final int FINGERPRINT_SAMPLES = 1 << 18;
+
+	/** Default maximum number of results stored per set of parameters */
+	public static final int DEFAULT_MAX_RESULTS = 1 << 18;
+
+	private static final String SUFFIX = ".pairs";
+	private static final int MAGIC = 0x464d4953; // "FMIS"
+	private static final int VERSION = 2;
+
+	private final File directory;
+	private final int maxResults;
+	private final Map<String, Map<Key, float[]>> results = new HashMap<>();
+	private final Set<String> modified = new HashSet<>();
+
+	/**
+	 * @param directory Cache directory (created if necessary)
+	 */
+	public PairCache(File directory) {
+		this(directory, DEFAULT_MAX_RESULTS);
+	}
+
+	/**
+	 * @param directory Cache directory (created if necessary)
+	 * @param maxResults Maximum number of results stored per set of parameters;
+	 *          the oldest results are dropped first
+	 */
+	public PairCache(File directory, int maxResults) {
+		this.directory = directory;
+		this.maxResults = maxResults;
+	}
+
+	/**
+	 * @return Default cache directory, in the home folder of the user
+	 */
+	public static File defaultDirectory() {
+		return new File(System.getProperty("user.home"),
+			".fmi-stitching/pair-cache");
+	}
+
+	/**
+	 * Describe the source of a tile by the path, size and modification time of
+	 * its files, to be set as {@link #SOURCE_PROPERTY} of tiles that are
+	 * expensive to read.
+	 * 
+	 * @param files Files the pixels of the tile are read from
+	 * @param details Part of the files the tile is read from, e.g. series,
+	 *          frame, channel and regions
+	 * @return Source description
+	 */
+	public static String source(List<File> files, String details) {
+		StringBuilder source = new StringBuilder();
+		for (File f : files) {
+			File file = f.getAbsoluteFile();
+			source.append(file.getPath()).append('|').append(file.length()).append(
+				'|').append(file.lastModified()).append('|');
+		}
+		return source.append(details).toString();
+	}
+
+	/**
+	 * Describe the parameters a registration result depends on. The fusion
+	 * settings and the correlation threshold are not part of it, since the
+	 * threshold is only applied after the registration.
+	 * 
+	 * @param params {@link StitchingParameters} used for the registration
+	 * @param method Name and settings of the registration method
+	 * @return Parameter description
+	 */
+	public static String parameters(StitchingParameters params, String method) {
+		return method + "|dimensionality=" + params.dimensionality + "|channel1=" +
+			params.channel1 + "|channel2=" + params.channel2 + "|checkPeaks=" +
+			params.checkPeaks + "|subpixel=" + params.subpixelAccuracy;
+	}
+
+	/**
+	 * Compute a fingerprint of the size and type of a tile and either its
+	 * {@link #SOURCE_PROPERTY}, if set, or the pixels of its first, middle and
+	 * last plane. Up to {@link #FINGERPRINT_SAMPLES} pixels are sampled evenly
+	 * over each of these planes.
+	 * 
+	 * @param imp Tile
+	 * @return Fingerprint
+	 */
+	public static long fingerprint(ImagePlus imp) {
+		long hash = 0xcbf29ce484222325L;
+		hash = mix(hash, imp.getWidth());
+		hash = mix(hash, imp.getHeight());
+		hash = mix(hash, imp.getNChannels());
+		hash = mix(hash, imp.getNSlices());
+		hash = mix(hash, imp.getNFrames());
+		hash = mix(hash, imp.getBitDepth());
+		Object source = imp.getProperty(SOURCE_PROPERTY);
+		if (source instanceof String) {
+			String s = (String) source;
+			for (int i = 0; i < s.length(); i++) {
+				hash = mix(hash, s.charAt(i));
+			}
+			return hash;
+		}
+		ImageStack stack = imp.getStack();
+		int n = stack.getSize();
+		int planeSize = imp.getWidth() * imp.getHeight();
+		// odd stride, so that the samples do not line up with even row widths
+		int stride = Math.max(1, (planeSize + FINGERPRINT_SAMPLES - 1) / FINGERPRINT_SAMPLES) | 1;
+		int[] planes = n > 2 ? new int[] { 1, (n + 1) / 2, n } : n == 2 ? new int[] { 1, 2 } : new int[] { 1 };
+		for (int plane : planes) {
+			Object pixels = stack.getPixels(plane);
+			for (int i = 0; i < planeSize; i += stride) {
+				if (pixels instanceof byte[]) hash = mix(hash, ((byte[]) pixels)[i]);
+				else if (pixels instanceof short[]) hash = mix(hash, ((short[]) pixels)[i]);
+				else if (pixels instanceof float[]) hash = mix(hash, Float.floatToIntBits(((float[]) pixels)[i]));
+				else if (pixels instanceof int[]) hash = mix(hash, ((int[]) pixels)[i]);
+			}
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, int value) {
+		// FNV-1a on the value as a whole
+		return (hash ^ value) * 0x100000001b3L;
+	}
+
+	/**
+	 * @param parameters Registration parameters, see {@link #parameters}
+	 * @param fingerprint1 Fingerprint of the first tile
+	 * @param fingerprint2 Fingerprint of the second tile
+	 * @param dx Predicted x offset of the second tile relative to the first
+	 * @param dy Predicted y offset of the second tile relative to the first
+	 * @return Cached shift followed by the cross correlation, or {@code null}
+	 */
+	public synchronized float[] get(String parameters, long fingerprint1, long fingerprint2, int dx, int dy) {
+		float[] result = results(parameters).get(new Key(fingerprint1, fingerprint2, dx, dy));
+		return result == null ? null : result.clone();
+	}
+
+	/**
+	 * Store a result in memory, to be written by {@link #save()}.
+	 * 
+	 * @param parameters Registration parameters, see {@link #parameters}
+	 * @param fingerprint1 Fingerprint of the first tile
+	 * @param fingerprint2 Fingerprint of the second tile
+	 * @param dx Predicted x offset of the second tile relative to the first
+	 * @param dy Predicted y offset of the second tile relative to the first
+	 * @param result Shift followed by the cross correlation and the width and
+	 *          height of the predicted overlap
+	 */
+	public synchronized void put(String parameters, long fingerprint1, long fingerprint2, int dx, int dy, float[] result) {
+		Map<Key, float[]> map = results(parameters);
+		Key key = new Key(fingerprint1, fingerprint2, dx, dy);
+		// re-insert, so that the result is dropped last
+		map.remove(key);
+		map.put(key, result.clone());
+		modified.add(parameters);
+	}
+
+	/**
+	 * Write all modified results to disk.
+	 * 
+	 * @throws IOException if the results could not be written
+	 */
+	public synchronized void save() throws IOException {
+		if (modified.isEmpty()) return;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create cache directory " + directory);
+		}
+		for (String parameters : modified) {
+			// write to a temporary file first, so readers never see partial files
+			File tmp = File.createTempFile("pairs", ".tmp", directory);
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+					write(out, parameters, results.get(parameters));
+				}
+				Files.move(tmp.toPath(), file(parameters).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			finally {
+				tmp.delete();
+			}
+		}
+		modified.clear();
+	}
+
+	private Map<Key, float[]> results(String parameters) {
+		Map<Key, float[]> map = results.get(parameters);
+		if (map == null) {
+			map = new LinkedHashMap<Key, float[]>() {
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+					return size() > maxResults;
+				}
+			};
+			File file = file(parameters);
+			if (file.isFile()) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+					read(in, parameters, map);
+				}
+				catch (IOException exc) {
+					// corrupt or truncated file: drop it and register again
+					map.clear();
+					file.delete();
+				}
+			}
+			results.put(parameters, map);
+		}
+		return map;
+	}
+
+	private File file(String parameters) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(parameters.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(String.format("%02x", b));
+			}
+			return new File(directory, name + SUFFIX);
+		}
+		catch (NoSuchAlgorithmException exc) {
+			throw new RuntimeException(exc);
+		}
+	}
+
+	private static void write(DataOutputStream out, String parameters, Map<Key, float[]> map) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(parameters);
+		out.writeInt(map.size());
+		for (Map.Entry<Key, float[]> entry : map.entrySet()) {
+			Key key = entry.getKey();
+			out.writeLong(key.fingerprint1);
+			out.writeLong(key.fingerprint2);
+			out.writeInt(key.dx);
+			out.writeInt(key.dy);
+			out.writeInt(entry.getValue().length);
+			for (float v : entry.getValue()) {
+				out.writeFloat(v);
+			}
+		}
+	}
+
+	private static void read(DataInputStream in, String parameters, Map<Key, float[]> map) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(parameters)) {
+			throw new IOException("Not a pair cache file for " + parameters);
+		}
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			Key key = new Key(in.readLong(), in.readLong(), in.readInt(), in.readInt());
+			float[] result = new float[in.readInt()];
+			for (int j = 0; j < result.length; j++) {
+				result[j] = in.readFloat();
+			}
+			map.put(key, result);
+		}
+	}
+
+	private static final class Key {
+
+		private final long fingerprint1;
+		private final long fingerprint2;
+		private final int dx;
+		private final int dy;
+
+		Key(long fingerprint1, long fingerprint2, int dx, int dy) {
+			this.fingerprint1 = fingerprint1;
+			this.fingerprint2 = fingerprint2;
+			this.dx = dx;
+			this.dy = dy;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return fingerprint1 == other.fingerprint1 && fingerprint2 == other.fingerprint2 && dx == other.dx && dy == other.dy;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fingerprint1, fingerprint2, dx, dy);
+		}
+	}
+}
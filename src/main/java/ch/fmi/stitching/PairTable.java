@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import java.util.Arrays;
+
+/**
+ * Compact table of pairwise registration results, stored in flat arrays.
+ */
+public class PairTable {
+
+	private final int dimensionality;
+	private final int[] tiles;
+	private final float[] shifts;
+	private final float[] correlations;
+
+	/**
+	 * Create a table of failed registrations.
+	 * 
+	 * @param size Number of pairs
+	 * @param dimensionality 2 or 3
+	 */
+	public PairTable(int size, int dimensionality) {
+		this.dimensionality = dimensionality;
+		tiles = new int[2 * size];
+		shifts = new float[dimensionality * size];
+		correlations = new float[size];
+		Arrays.fill(shifts, Float.NaN);
+	}
+
+	/**
+	 * @return Number of pairs
+	 */
+	public int size() {
+		return correlations.length;
+	}
+
+	/**
+	 * @return 2 or 3
+	 */
+	public int getDimensionality() {
+		return dimensionality;
+	}
+
+	/**
+	 * Set the tiles of a pair, and mark its registration as failed.
+	 */
+	public void setTiles(int index, int tile1, int tile2) {
+		tiles[2 * index] = tile1;
+		tiles[2 * index + 1] = tile2;
+		Arrays.fill(shifts, dimensionality * index, dimensionality * (index + 1), Float.NaN);
+		correlations[index] = 0;
+	}
+
+	/**
+	 * Store the result of a registration.
+	 * 
+	 * @param index Index of the pair
+	 * @param shift Shift of the second tile relative to the first tile, followed
+	 *          by the cross correlation (as returned by
+	 *          {@link PhaseCorrelation#register})
+	 */
+	public void setResult(int index, float[] shift) {
+		System.arraycopy(shift, 0, shifts, dimensionality * index, dimensionality);
+		correlations[index] = shift[dimensionality];
+	}
+
+	public int getTile1(int index) {
+		return tiles[2 * index];
+	}
+
+	public int getTile2(int index) {
+		return tiles[2 * index + 1];
+	}
+
+	/**
+	 * @return Shift of the second tile relative to the first tile in dimension
+	 *         {@code d}, or {@code NaN} if the registration failed
+	 */
+	public float getShift(int index, int d) {
+		return shifts[dimensionality * index + d];
+	}
+
+	public float getCorrelation(int index) {
+		return correlations[index];
+	}
+
+	/**
+	 * @return true if the pair was registered with a correlation of at least
+	 *         {@code threshold}
+	 */
+	public boolean isValid(int index, double threshold) {
+		return !Float.isNaN(shifts[dimensionality * index]) && correlations[index] >= threshold;
+	}
+}
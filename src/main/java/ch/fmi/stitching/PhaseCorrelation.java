@@ -0,0 +1,457 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import java.util.Arrays;
+
+/**
+ * Phase correlation of two equally sized 2D images, using a reusable
+ * workspace.
+ * <p>
+ * Both images are transformed at once, packed into the real and imaginary
+ * part of a single complex image. The {@code checkPeaks} highest peaks of the
+ * phase correlation surface are verified by the cross correlation of the
+ * overlap, for all shifts each peak may stand for. An instance keeps its FFT
+ * buffers between calls and is not thread-safe, so each thread should use its
+ * own instance.
+ * </p>
+ */
+public class PhaseCorrelation {
+
+	/** Minimum overlap (as fraction of the image area) of a verified shift */
+	public static final double MIN_OVERLAP_FRACTION = 0.1;
+
+	private final int maxWidth;
+	private final int maxHeight;
+	private final int tableSize;
+	private final float[] cos;
+	private final float[] sin;
+	private final float[] zRe;
+	private final float[] zIm;
+	private final float[] qRe;
+	private final float[] qIm;
+	private final float[] colRe;
+	private final float[] colIm;
+
+	/**
+	 * @param maxWidth Maximum width of the images to correlate
+	 * @param maxHeight Maximum height of the images to correlate
+	 */
+	public PhaseCorrelation(int maxWidth, int maxHeight) {
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		int n = fftSize(maxWidth);
+		int m = fftSize(maxHeight);
+		tableSize = Math.max(n, m);
+		cos = new float[tableSize / 2];
+		sin = new float[tableSize / 2];
+		for (int k = 0; k < tableSize / 2; k++) {
+			cos[k] = (float) Math.cos(2 * Math.PI * k / tableSize);
+			sin[k] = (float) Math.sin(2 * Math.PI * k / tableSize);
+		}
+		zRe = new float[n * m];
+		zIm = new float[n * m];
+		qRe = new float[n * m];
+		qIm = new float[n * m];
+		colRe = new float[m];
+		colIm = new float[m];
+	}
+
+	/**
+	 * @param maxWidth Maximum width of the images to correlate
+	 * @param maxHeight Maximum height of the images to correlate
+	 * @return Approximate memory used by a workspace, including the two images
+	 */
+	public static long workspaceBytes(int maxWidth, int maxHeight) {
+		long n = fftSize(maxWidth);
+		long m = fftSize(maxHeight);
+		return 16 * n * m + 8L * maxWidth * maxHeight + 8 * m + 4 * Math.max(n, m);
+	}
+
+	/**
+	 * @return true if images of the given size fit into this workspace
+	 */
+	public boolean fits(int width, int height) {
+		return width <= maxWidth && height <= maxHeight;
+	}
+
+	/**
+	 * Estimate the shift of image {@code b} relative to image {@code a}, i.e.
+	 * the position of the origin of {@code b} in the coordinates of {@code a}.
+	 * 
+	 * @param a Pixels of the first image
+	 * @param b Pixels of the second image
+	 * @param width Width of both images
+	 * @param height Height of both images
+	 * @param checkPeaks Number of phase correlation peaks to verify
+	 * @param subpixel If true, refine the shift to subpixel accuracy
+	 * @return {@code {dx, dy, r}} with the cross correlation {@code r} of the
+	 *         overlap, or {@code null} if no peak could be verified
+	 */
+	public float[] register(float[] a, float[] b, int width, int height, int checkPeaks, boolean subpixel) {
+		checkSize(width, height);
+		int n = fftSize(width);
+		int m = fftSize(height);
+		pack(a, b, width, height);
+
+		// normalized cross power spectrum, unpacking A and B on the fly
+		for (int ky = 0; ky < m; ky++) {
+			int ny = ky == 0 ? 0 : m - ky;
+			for (int kx = 0; kx < n; kx++) {
+				int nx = kx == 0 ? 0 : n - kx;
+				int k = ky * n + kx;
+				int nk = ny * n + nx;
+				crossPower(k, (zRe[k] + zRe[nk]) / 2, (zIm[k] - zIm[nk]) / 2, (zIm[k] + zIm[nk]) / 2, (zRe[nk] - zRe[k]) / 2);
+			}
+		}
+		return correlate(a, b, width, height, checkPeaks, subpixel);
+	}
+
+	/**
+	 * Estimate the shift of image {@code b} relative to image {@code a} from
+	 * their spectra, as computed by {@link #spectrum} or {@link #spectra}. A
+	 * missing spectrum is computed in the workspace.
+	 * 
+	 * @param a Pixels of the first image
+	 * @param aRe Real part of the spectrum of {@code a}, or {@code null}
+	 * @param aIm Imaginary part of the spectrum of {@code a}, or {@code null}
+	 * @param b Pixels of the second image
+	 * @param bRe Real part of the spectrum of {@code b}, or {@code null}
+	 * @param bIm Imaginary part of the spectrum of {@code b}, or {@code null}
+	 * @param width Width of both images
+	 * @param height Height of both images
+	 * @param checkPeaks Number of phase correlation peaks to verify
+	 * @param subpixel If true, refine the shift to subpixel accuracy
+	 * @return {@code {dx, dy, r}} with the cross correlation {@code r} of the
+	 *         overlap, or {@code null} if no peak could be verified
+	 */
+	public float[] register(float[] a, float[] aRe, float[] aIm, float[] b, float[] bRe, float[] bIm, int width, int height, int checkPeaks, boolean subpixel) {
+		if (aRe == null && bRe == null) return register(a, b, width, height, checkPeaks, subpixel);
+		checkSize(width, height);
+		if (aRe == null) {
+			spectrum(a, width, height, zRe, zIm);
+			aRe = zRe;
+			aIm = zIm;
+		} else if (bRe == null) {
+			spectrum(b, width, height, zRe, zIm);
+			bRe = zRe;
+			bIm = zIm;
+		}
+		int size = fftSize(width) * fftSize(height);
+		for (int k = 0; k < size; k++) {
+			crossPower(k, aRe[k], aIm[k], bRe[k], bIm[k]);
+		}
+		return correlate(a, b, width, height, checkPeaks, subpixel);
+	}
+
+	/**
+	 * Compute the spectrum of a zero-mean, zero-padded image.
+	 * 
+	 * @param a Pixels of the image
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param re Real part of the spectrum, of at least {@link #spectrumSize}
+	 * @param im Imaginary part of the spectrum, of at least {@link #spectrumSize}
+	 */
+	public void spectrum(float[] a, int width, int height, float[] re, float[] im) {
+		checkSize(width, height);
+		int n = fftSize(width);
+		int m = fftSize(height);
+		double mean = mean(a, width * height);
+		Arrays.fill(re, 0, n * m, 0f);
+		Arrays.fill(im, 0, n * m, 0f);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				re[y * n + x] = (float) (a[y * width + x] - mean);
+			}
+		}
+		fft2D(re, im, n, m, height, false);
+	}
+
+	/**
+	 * Compute the spectra of two equally sized images with a single FFT.
+	 * 
+	 * @see #spectrum
+	 */
+	public void spectra(float[] a, float[] b, int width, int height, float[] aRe, float[] aIm, float[] bRe, float[] bIm) {
+		checkSize(width, height);
+		int n = fftSize(width);
+		int m = fftSize(height);
+		pack(a, b, width, height);
+		for (int ky = 0; ky < m; ky++) {
+			int ny = ky == 0 ? 0 : m - ky;
+			for (int kx = 0; kx < n; kx++) {
+				int nx = kx == 0 ? 0 : n - kx;
+				int k = ky * n + kx;
+				int nk = ny * n + nx;
+				aRe[k] = (zRe[k] + zRe[nk]) / 2;
+				aIm[k] = (zIm[k] - zIm[nk]) / 2;
+				bRe[k] = (zIm[k] + zIm[nk]) / 2;
+				bIm[k] = (zRe[nk] - zRe[k]) / 2;
+			}
+		}
+	}
+
+	/**
+	 * @return Length of the spectrum of an image of the given size
+	 */
+	public static int spectrumSize(int width, int height) {
+		return fftSize(width) * fftSize(height);
+	}
+
+	private void checkSize(int width, int height) {
+		if (!fits(width, height)) {
+			throw new IllegalArgumentException("Images (" + width + "x" + height + ") exceed the workspace (" + maxWidth + "x" + maxHeight + ")");
+		}
+	}
+
+	/**
+	 * Transform both zero-mean images at once, packed into one complex image.
+	 * With {@code Z = FFT(a + ib)}, the spectra are
+	 * {@code A = (Z(k) + conj(Z(-k))) / 2} and
+	 * {@code B = (Z(k) - conj(Z(-k))) / 2i}.
+	 */
+	private void pack(float[] a, float[] b, int width, int height) {
+		int n = fftSize(width);
+		int m = fftSize(height);
+		double meanA = mean(a, width * height);
+		double meanB = mean(b, width * height);
+		Arrays.fill(zRe, 0, n * m, 0f);
+		Arrays.fill(zIm, 0, n * m, 0f);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				zRe[y * n + x] = (float) (a[y * width + x] - meanA);
+				zIm[y * n + x] = (float) (b[y * width + x] - meanB);
+			}
+		}
+		fft2D(zRe, zIm, n, m, height, false);
+	}
+
+	/**
+	 * Store the normalized cross power {@code A * conj(B) / |A * conj(B)|} at
+	 * frequency {@code k}.
+	 */
+	private void crossPower(int k, float aRe, float aIm, float bRe, float bIm) {
+		float re = aRe * bRe + aIm * bIm;
+		float im = aIm * bRe - aRe * bIm;
+		float magnitude = (float) Math.sqrt(re * re + im * im);
+		if (magnitude > 1e-10f) {
+			qRe[k] = re / magnitude;
+			qIm[k] = im / magnitude;
+		} else {
+			qRe[k] = 0;
+			qIm[k] = 0;
+		}
+	}
+
+	/**
+	 * Transform the cross power spectrum back, and verify its highest peaks.
+	 */
+	private float[] correlate(float[] a, float[] b, int width, int height, int checkPeaks, boolean subpixel) {
+		int n = fftSize(width);
+		int m = fftSize(height);
+		fft2D(qRe, qIm, n, m, m, true);
+
+		int[] peaks = findPeaks(qRe, n, m, Math.max(1, checkPeaks));
+
+		// verify all shifts each peak may stand for, keep the best correlated
+		float[] best = null;
+		long minOverlap = (long) Math.ceil(MIN_OVERLAP_FRACTION * width * height);
+		for (int peak : peaks) {
+			if (peak < 0) break;
+			int px = peak % n;
+			int py = peak / n;
+			for (int dx : new int[] { px, px - n }) {
+				if (Math.abs(dx) >= width) continue;
+				for (int dy : new int[] { py, py - m }) {
+					if (Math.abs(dy) >= height) continue;
+					if ((long) (width - Math.abs(dx)) * (height - Math.abs(dy)) < minOverlap) continue;
+					float r = crossCorrelation(a, b, width, height, dx, dy);
+					if (best == null || r > best[2]) {
+						best = new float[] { dx, dy, r, px, py };
+					}
+				}
+			}
+		}
+		if (best == null) return null;
+		if (subpixel) {
+			int px = (int) best[3];
+			int py = (int) best[4];
+			best[0] += quadraticPeak(qRe[py * n + (px + n - 1) % n], qRe[py * n + px], qRe[py * n + (px + 1) % n]);
+			best[1] += quadraticPeak(qRe[((py + m - 1) % m) * n + px], qRe[py * n + px], qRe[((py + 1) % m) * n + px]);
+		}
+		return new float[] { best[0], best[1], best[2] };
+	}
+
+	/**
+	 * @return Smallest power of two not smaller than {@code size}
+	 */
+	static int fftSize(int size) {
+		int n = 1;
+		while (n < size) n <<= 1;
+		return n;
+	}
+
+	private static double mean(float[] pixels, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) sum += pixels[i];
+		return length > 0 ? sum / length : 0;
+	}
+
+	/**
+	 * Find the highest local maxima of a periodic image.
+	 * 
+	 * @return Indices of the maxima, highest first, padded with -1
+	 */
+	private static int[] findPeaks(float[] surface, int n, int m, int count) {
+		int[] peaks = new int[count];
+		float[] values = new float[count];
+		Arrays.fill(peaks, -1);
+		for (int y = 0; y < m; y++) {
+			int up = ((y + m - 1) % m) * n;
+			int down = ((y + 1) % m) * n;
+			for (int x = 0; x < n; x++) {
+				float v = surface[y * n + x];
+				if (peaks[count - 1] >= 0 && v <= values[count - 1]) continue;
+				int left = (x + n - 1) % n;
+				int right = (x + 1) % n;
+				if (v < surface[y * n + left] || v < surface[y * n + right] || v < surface[up + x] || v < surface[down + x] || v < surface[up + left] || v < surface[up + right] || v < surface[down + left] || v < surface[down + right]) continue;
+				int i = count - 1;
+				while (i > 0 && (peaks[i - 1] < 0 || values[i - 1] < v)) {
+					peaks[i] = peaks[i - 1];
+					values[i] = values[i - 1];
+					i--;
+				}
+				peaks[i] = y * n + x;
+				values[i] = v;
+			}
+		}
+		return peaks;
+	}
+
+	/**
+	 * @return Offset of the vertex of the parabola through three samples
+	 */
+	private static float quadraticPeak(float left, float center, float right) {
+		float denominator = left - 2 * center + right;
+		if (denominator >= 0) return 0;
+		float offset = (left - right) / (2 * denominator);
+		return Math.max(-0.5f, Math.min(0.5f, offset));
+	}
+
+	/**
+	 * Pearson correlation of the overlap of {@code a} and {@code b}, with
+	 * {@code b} placed at {@code (dx, dy)}.
+	 */
+	static float crossCorrelation(float[] a, float[] b, int width, int height, int dx, int dy) {
+		int x0 = Math.max(0, dx);
+		int x1 = Math.min(width, width + dx);
+		int y0 = Math.max(0, dy);
+		int y1 = Math.min(height, height + dy);
+		long count = (long) (x1 - x0) * (y1 - y0);
+		if (count <= 1) return 0;
+		double sumA = 0, sumB = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				sumA += a[y * width + x];
+				sumB += b[(y - dy) * width + x - dx];
+			}
+		}
+		double meanA = sumA / count;
+		double meanB = sumB / count;
+		double sumAB = 0, sumAA = 0, sumBB = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				double va = a[y * width + x] - meanA;
+				double vb = b[(y - dy) * width + x - dx] - meanB;
+				sumAB += va * vb;
+				sumAA += va * va;
+				sumBB += vb * vb;
+			}
+		}
+		if (sumAA == 0 || sumBB == 0) return 0;
+		return (float) (sumAB / Math.sqrt(sumAA * sumBB));
+	}
+
+	/**
+	 * In-place 2D FFT of an {@code n x m} image.
+	 * 
+	 * @param rows Number of leading rows that are not all zero
+	 */
+	private void fft2D(float[] re, float[] im, int n, int m, int rows, boolean inverse) {
+		for (int y = 0; y < rows; y++) {
+			fft(re, im, y * n, n, inverse);
+		}
+		for (int x = 0; x < n; x++) {
+			for (int y = 0; y < m; y++) {
+				colRe[y] = re[y * n + x];
+				colIm[y] = im[y * n + x];
+			}
+			fft(colRe, colIm, 0, m, inverse);
+			for (int y = 0; y < m; y++) {
+				re[y * n + x] = colRe[y];
+				im[y * n + x] = colIm[y];
+			}
+		}
+	}
+
+	/**
+	 * In-place radix-2 FFT (unnormalized) of {@code n} consecutive values.
+	 */
+	private void fft(float[] re, float[] im, int offset, int n, boolean inverse) {
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+			if (i < j) {
+				float t = re[offset + i];
+				re[offset + i] = re[offset + j];
+				re[offset + j] = t;
+				t = im[offset + i];
+				im[offset + i] = im[offset + j];
+				im[offset + j] = t;
+			}
+		}
+		for (int length = 2; length <= n; length <<= 1) {
+			int half = length >> 1;
+			int step = tableSize / length;
+			for (int i = 0; i < n; i += length) {
+				for (int k = 0; k < half; k++) {
+					float wr = cos[k * step];
+					float wi = inverse ? sin[k * step] : -sin[k * step];
+					int p = offset + i + k;
+					int q = p + half;
+					float xr = re[q] * wr - im[q] * wi;
+					float xi = re[q] * wi + im[q] * wr;
+					re[q] = re[p] - xr;
+					im[q] = im[p] - xi;
+					re[p] += xr;
+					im[p] += xi;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Per-pixel accumulator computing one or several projections of a stack of
+ * planes in a single pass.
+ * <p>
+ * Planes ({@code byte[]}, {@code short[]} or {@code float[]}, unsigned for the
+ * integer types) are added one at a time, and folded only into the selected
+ * {@link Statistic statistics}. Maximum and minimum are kept in the pixel type
+ * of the planes, sum and mean as {@code float[]}. Optionally, a per-pixel
+ * percentile (e.g. the median) is estimated by stochastic approximation, with
+ * a step size shrinking with the number of planes and scaled by the per-pixel
+ * value range. The estimate is approximate, but needs no more memory than a
+ * single {@code float[]} plane (plus maximum and minimum, which it needs for
+ * its step size).
+ * </p>
+ */
+public class ProjectionAccumulator {
+
+	/** Percentile value to disable the percentile estimate */
+	public static final double NO_PERCENTILE = Double.NaN;
+
+	/**
+	 * Statistics that can be accumulated.
+	 */
+	public enum Statistic {
+		MAX, MIN, SUM, MEAN
+	}
+
+	private final int nPixels;
+	private final double percentile;
+	private final boolean hasMax;
+	private final boolean hasMin;
+	private final boolean hasSum;
+
+	private Object max;
+	private Object min;
+	private float[] sum;
+	private float[] mean;
+	private float[] estimate;
+	private int count = 0;
+	private int meanCount = 0;
+
+	/**
+	 * Accumulate all statistics.
+	 *
+	 * @param nPixels Number of pixels per plane
+	 */
+	public ProjectionAccumulator(int nPixels) {
+		this(nPixels, NO_PERCENTILE);
+	}
+
+	/**
+	 * Accumulate all statistics.
+	 *
+	 * @param nPixels Number of pixels per plane
+	 * @param percentile Percentile to estimate (between 0 and 1, e.g. 0.5 for the
+	 *          median), or {@link #NO_PERCENTILE}
+	 */
+	public ProjectionAccumulator(int nPixels, double percentile) {
+		this(nPixels, EnumSet.allOf(Statistic.class), percentile);
+	}
+
+	/**
+	 * @param nPixels Number of pixels per plane
+	 * @param statistics Statistics to accumulate
+	 * @param percentile Percentile to estimate (between 0 and 1, e.g. 0.5 for the
+	 *          median), or {@link #NO_PERCENTILE}
+	 */
+	public ProjectionAccumulator(int nPixels, Set<Statistic> statistics,
+		double percentile)
+	{
+		if (!Double.isNaN(percentile) && (percentile < 0 || percentile > 1)) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 1: " +
+				percentile);
+		}
+		this.nPixels = nPixels;
+		this.percentile = percentile;
+		// the step size of the percentile estimate needs maximum and minimum
+		hasMax = statistics.contains(Statistic.MAX) || !Double.isNaN(percentile);
+		hasMin = statistics.contains(Statistic.MIN) || !Double.isNaN(percentile);
+		hasSum = statistics.contains(Statistic.SUM) || statistics.contains(
+			Statistic.MEAN);
+	}
+
+	/**
+	 * Fold a plane into the selected projections.
+	 *
+	 * @param pixels Plane pixels ({@code byte[]}, {@code short[]} or
+	 *          {@code float[]})
+	 */
+	public void add(Object pixels) {
+		if (count == 0) {
+			init(pixels);
+		}
+		else if (pixels instanceof byte[]) {
+			add((byte[]) pixels);
+		}
+		else if (pixels instanceof short[]) {
+			add((short[]) pixels);
+		}
+		else {
+			add((float[]) pixels);
+		}
+		count++;
+	}
+
+	/**
+	 * @return Number of planes added
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Maximum projection, in the pixel type of the added planes, or
+	 *         {@code null} if not accumulated
+	 */
+	public Object getMax() {
+		return max;
+	}
+
+	/**
+	 * @return Minimum projection, in the pixel type of the added planes, or
+	 *         {@code null} if not accumulated
+	 */
+	public Object getMin() {
+		return min;
+	}
+
+	/**
+	 * @return Sum projection, or {@code null} if neither sum nor mean are
+	 *         accumulated
+	 */
+	public float[] getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return Mean projection (computed once per number of added planes), or
+	 *         {@code null} if neither sum nor mean are accumulated
+	 */
+	public float[] getMean() {
+		if (sum == null) return null;
+		if (mean == null || meanCount != count) {
+			mean = new float[nPixels];
+			for (int i = 0; i < nPixels; i++) {
+				mean[i] = sum[i] / count;
+			}
+			meanCount = count;
+		}
+		return mean;
+	}
+
+	/**
+	 * @return Percentile estimate, or {@code null} if no percentile was requested
+	 */
+	public float[] getPercentile() {
+		return estimate;
+	}
+
+	private void init(Object pixels) {
+		if (hasMax) max = copy(pixels);
+		if (hasMin) min = copy(pixels);
+		if (!hasSum && Double.isNaN(percentile)) return;
+		float[] first = new float[nPixels];
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < nPixels; i++)
+				first[i] = p[i] & 0xff;
+		}
+		else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < nPixels; i++)
+				first[i] = p[i] & 0xffff;
+		}
+		else {
+			System.arraycopy((float[]) pixels, 0, first, 0, nPixels);
+		}
+		if (hasSum) sum = first;
+		if (!Double.isNaN(percentile)) estimate = hasSum ? first.clone() : first;
+	}
+
+	private static Object copy(Object pixels) {
+		if (pixels instanceof byte[]) return ((byte[]) pixels).clone();
+		if (pixels instanceof short[]) return ((short[]) pixels).clone();
+		return ((float[]) pixels).clone();
+	}
+
+	private void add(byte[] p) {
+		if (max != null) {
+			byte[] mx = (byte[]) max;
+			for (int i = 0; i < nPixels; i++) {
+				if ((p[i] & 0xff) > (mx[i] & 0xff)) mx[i] = p[i];
+			}
+		}
+		if (min != null) {
+			byte[] mn = (byte[]) min;
+			for (int i = 0; i < nPixels; i++) {
+				if ((p[i] & 0xff) < (mn[i] & 0xff)) mn[i] = p[i];
+			}
+		}
+		if (sum != null) {
+			for (int i = 0; i < nPixels; i++) {
+				sum[i] += p[i] & 0xff;
+			}
+		}
+		if (estimate != null) {
+			byte[] mx = (byte[]) max;
+			byte[] mn = (byte[]) min;
+			for (int i = 0; i < nPixels; i++) {
+				updateEstimate(i, p[i] & 0xff, mx[i] & 0xff, mn[i] & 0xff);
+			}
+		}
+	}
+
+	private void add(short[] p) {
+		if (max != null) {
+			short[] mx = (short[]) max;
+			for (int i = 0; i < nPixels; i++) {
+				if ((p[i] & 0xffff) > (mx[i] & 0xffff)) mx[i] = p[i];
+			}
+		}
+		if (min != null) {
+			short[] mn = (short[]) min;
+			for (int i = 0; i < nPixels; i++) {
+				if ((p[i] & 0xffff) < (mn[i] & 0xffff)) mn[i] = p[i];
+			}
+		}
+		if (sum != null) {
+			for (int i = 0; i < nPixels; i++) {
+				sum[i] += p[i] & 0xffff;
+			}
+		}
+		if (estimate != null) {
+			short[] mx = (short[]) max;
+			short[] mn = (short[]) min;
+			for (int i = 0; i < nPixels; i++) {
+				updateEstimate(i, p[i] & 0xffff, mx[i] & 0xffff, mn[i] & 0xffff);
+			}
+		}
+	}
+
+	private void add(float[] p) {
+		if (max != null) {
+			float[] mx = (float[]) max;
+			for (int i = 0; i < nPixels; i++) {
+				if (p[i] > mx[i]) mx[i] = p[i];
+			}
+		}
+		if (min != null) {
+			float[] mn = (float[]) min;
+			for (int i = 0; i < nPixels; i++) {
+				if (p[i] < mn[i]) mn[i] = p[i];
+			}
+		}
+		if (sum != null) {
+			for (int i = 0; i < nPixels; i++) {
+				sum[i] += p[i];
+			}
+		}
+		if (estimate != null) {
+			float[] mx = (float[]) max;
+			float[] mn = (float[]) min;
+			for (int i = 0; i < nPixels; i++) {
+				updateEstimate(i, p[i], mx[i], mn[i]);
+			}
+		}
+	}
+
+	/**
+	 * Move the estimate towards the percentile: up by {@code q * step} for
+	 * values above it, down by {@code (1 - q) * step} for values below it.
+	 */
+	private void updateEstimate(int i, float v, float max, float min) {
+		float e = estimate[i];
+		float step = (max - min) / (count + 1);
+		if (v > e) e += (float) (percentile * step);
+		else if (v < e) e -= (float) ((1 - percentile) * step);
+		estimate[i] = Math.max(min, Math.min(max, e));
+	}
+}
@@ -0,0 +1,404 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import mpicbg.stitching.PairWiseStitchingImgLib;
+import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.StitchingParameters;
+
+import org.scijava.log.Logger;
+
+/**
+ * Pairwise registration of tiles on a fork-join pool.
+ * <p>
+ * 2D pairs are registered by {@link PhaseCorrelation}, each thread reusing its
+ * own workspace sized for the largest overlap. The number of threads is
+ * limited such that the workspaces of all threads fit into the memory limit.
+ * 3D pairs are registered by {@link PairWiseStitchingImgLib}.
+ * </p>
+ */
+public class RegistrationEngine {
+
+	private final int nThreads;
+	private final long maxMemory;
+	private final PairCache pairCache;
+	private final Logger log;
+	private final ThreadLocal<PhaseCorrelation> workspaces = new ThreadLocal<>();
+
+	/**
+	 * Registration of a single pair of tiles.
+	 */
+	public interface PairRegistration {
+
+		/**
+		 * @param i Index of the first tile
+		 * @param j Index of the second tile
+		 * @return Shift of tile {@code j} relative to tile {@code i}, followed by
+		 *         the cross correlation, or {@code null} if the registration
+		 *         failed
+		 */
+		float[] register(int i, int j);
+	}
+
+	/**
+	 * @param nThreads Maximum number of threads, or 0 to use all processors
+	 * @param maxMemory Memory limit (in bytes) of all workspaces, or 0 to use
+	 *          half of the maximum heap size
+	 */
+	public RegistrationEngine(int nThreads, long maxMemory) {
+		this(nThreads, maxMemory, null);
+	}
+
+	/**
+	 * @param nThreads Maximum number of threads, or 0 to use all processors
+	 * @param maxMemory Memory limit (in bytes) of all workspaces, or 0 to use
+	 *          half of the maximum heap size
+	 * @param pairCache Cache of registration results to read from and to
+	 *          write to, or {@code null}
+	 */
+	public RegistrationEngine(int nThreads, long maxMemory, PairCache pairCache) {
+		this(nThreads, maxMemory, pairCache, null);
+	}
+
+	/**
+	 * @param nThreads Maximum number of threads, or 0 to use all processors
+	 * @param maxMemory Memory limit (in bytes) of all workspaces, or 0 to use
+	 *          half of the maximum heap size
+	 * @param pairCache Cache of registration results to read from and to
+	 *          write to, or {@code null}
+	 * @param log {@link Logger} reporting the registered and reused pairs, or
+	 *          {@code null}
+	 */
+	public RegistrationEngine(int nThreads, long maxMemory, PairCache pairCache, Logger log) {
+		this.nThreads = nThreads > 0 ? nThreads : Runtime.getRuntime().availableProcessors();
+		this.maxMemory = maxMemory > 0 ? maxMemory : Runtime.getRuntime().maxMemory() / 2;
+		this.pairCache = pairCache;
+		this.log = log;
+	}
+
+	/**
+	 * Create an engine using all processors, and either half or an eighth of the
+	 * maximum heap size.
+	 * 
+	 * @param saveMemory If true, use less memory at the cost of fewer threads
+	 * @return Registration engine
+	 */
+	public static RegistrationEngine create(boolean saveMemory) {
+		return new RegistrationEngine(0, saveMemory ? Runtime.getRuntime().maxMemory() / 8 : 0);
+	}
+
+	/**
+	 * @return {@link Logger} of this engine, or {@code null}
+	 */
+	public Logger getLogger() {
+		return log;
+	}
+
+	/**
+	 * @param bytesPerThread Memory needed by each thread
+	 * @return Number of threads fitting into the memory limit
+	 */
+	public int getParallelism(long bytesPerThread) {
+		return (int) Math.max(1, Math.min(nThreads, maxMemory / Math.max(1, bytesPerThread)));
+	}
+
+	/**
+	 * Register tiles within the overlap predicted by their known positions.
+	 * 
+	 * @param images List of tiles
+	 * @param positions List of known positions
+	 * @param pairs Pairs of tile indices to register
+	 * @param params {@link StitchingParameters} defining the options for
+	 *          stitching, with {@code channel1} and {@code channel2} selecting the
+	 *          registration channel of the tiles (1-based, or 0 to use the
+	 *          average of all channels)
+	 * @return Registration results
+	 */
+	public PairTable register(List<ImagePlus> images, List<float[]> positions, List<int[]> pairs, StitchingParameters params) {
+		return registerCached(images, positions, pairs, params, "phase correlation", missing -> registerUncached(images, positions, missing, params));
+	}
+
+	/**
+	 * Register pairs of tiles, reading the results of previous runs from the
+	 * pair cache if there is one, and storing the new results in it.
+	 * 
+	 * @param images List of tiles
+	 * @param positions List of known positions
+	 * @param pairs Pairs of tile indices to register
+	 * @param params {@link StitchingParameters} defining the options for
+	 *          stitching
+	 * @param method Name and settings of the registration method
+	 * @param registration Registration of the pairs missing in the cache
+	 * @return Registration results, in the order of {@code pairs}
+	 */
+	public PairTable registerCached(List<ImagePlus> images, List<float[]> positions, List<int[]> pairs, StitchingParameters params, String method, Function<List<int[]>, PairTable> registration) {
+		if (pairCache == null || pairs.isEmpty()) return registration.apply(pairs);
+		int dimensionality = params.dimensionality == 2 ? 2 : 3;
+		String parameters = PairCache.parameters(params, method);
+		long[] fingerprints = fingerprints(images, pairs);
+
+		PairTable table = new PairTable(pairs.size(), dimensionality);
+		List<int[]> missing = new ArrayList<>();
+		List<Integer> missingIndices = new ArrayList<>();
+		for (int k = 0; k < pairs.size(); k++) {
+			int[] pair = pairs.get(k);
+			table.setTiles(k, pair[0], pair[1]);
+			float[] result = pairCache.get(parameters, fingerprints[pair[0]], fingerprints[pair[1]], offset(positions, pair, 0), offset(positions, pair, 1));
+			if (result != null) {
+				if (!Float.isNaN(result[0])) table.setResult(k, result);
+			} else {
+				missing.add(pair);
+				missingIndices.add(k);
+			}
+		}
+		if (log != null) log.info("Reusing " + (pairs.size() - missing.size()) + " of " + pairs.size() + " pairwise registrations from the pair cache");
+		if (missing.isEmpty()) return table;
+
+		PairTable computed = registration.apply(missing);
+		for (int m = 0; m < missing.size(); m++) {
+			int[] pair = missing.get(m);
+			float[] result = new float[dimensionality + 3];
+			for (int d = 0; d < dimensionality; d++) {
+				result[d] = computed.getShift(m, d);
+			}
+			result[dimensionality] = computed.getCorrelation(m);
+			Rectangle region = overlap(positions.get(pair[0]), images.get(pair[0]), positions.get(pair[1]), images.get(pair[1]));
+			result[dimensionality + 1] = region.width;
+			result[dimensionality + 2] = region.height;
+			if (!Float.isNaN(result[0])) table.setResult(missingIndices.get(m), result);
+			pairCache.put(parameters, fingerprints[pair[0]], fingerprints[pair[1]], offset(positions, pair, 0), offset(positions, pair, 1), result);
+		}
+		try {
+			pairCache.save();
+		}
+		catch (IOException exc) {
+			// the results are still valid, they will just be computed again next time
+			if (log != null) log.warn("Could not save the pair cache: " + exc.getMessage());
+		}
+		return table;
+	}
+
+	private static int offset(List<float[]> positions, int[] pair, int d) {
+		return Math.round(positions.get(pair[1])[d] - positions.get(pair[0])[d]);
+	}
+
+	/**
+	 * Compute the fingerprints of all tiles of the given pairs in parallel.
+	 * 
+	 * @return Fingerprints indexed by tile, 0 for tiles not in any pair
+	 */
+	private long[] fingerprints(List<ImagePlus> images, List<int[]> pairs) {
+		long[] fingerprints = new long[images.size()];
+		boolean[] used = new boolean[images.size()];
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int[] pair : pairs) {
+			for (int tile : pair) {
+				if (used[tile]) continue;
+				used[tile] = true;
+				tasks.add(() -> {
+					fingerprints[tile] = PairCache.fingerprint(images.get(tile));
+					return null;
+				});
+			}
+		}
+		invokeAll(tasks, nThreads);
+		return fingerprints;
+	}
+
+	private PairTable registerUncached(List<ImagePlus> images, List<float[]> positions, List<int[]> pairs, StitchingParameters params) {
+		int maxWidth = 0;
+		int maxHeight = 0;
+		for (int[] pair : pairs) {
+			Rectangle region = overlap(positions.get(pair[0]), images.get(pair[0]), positions.get(pair[1]), images.get(pair[1]));
+			maxWidth = Math.max(maxWidth, region.width);
+			maxHeight = Math.max(maxHeight, region.height);
+		}
+		if (params.dimensionality != 2) {
+			long bytesPerThread = 16L * PhaseCorrelation.fftSize(maxWidth) * PhaseCorrelation.fftSize(maxHeight) * images.get(0).getNSlices();
+			return registerPairs(pairs, 3, bytesPerThread, (i, j) -> registerPairwise(images.get(i), positions.get(i), images.get(j), positions.get(j), params));
+		}
+		int width = maxWidth;
+		int height = maxHeight;
+		return registerPairs(pairs, 2, PhaseCorrelation.workspaceBytes(width, height), (i, j) -> {
+			float[] p1 = positions.get(i);
+			float[] p2 = positions.get(j);
+			Rectangle region1 = overlap(p1, images.get(i), p2, images.get(j));
+			if (region1.isEmpty()) return null;
+			Rectangle region2 = secondRegion(region1, p1, p2);
+			float[] a = (float[]) registrationPlane(images.get(i), params.channel1, region1).getPixels();
+			float[] b = (float[]) registrationPlane(images.get(j), params.channel2, region2).getPixels();
+			float[] shift = workspace(width, height).register(a, b, region1.width, region1.height, params.checkPeaks, params.subpixelAccuracy);
+			if (shift == null) return null;
+			shift[0] += region1.x - region2.x;
+			shift[1] += region1.y - region2.y;
+			return shift;
+		});
+	}
+
+	/**
+	 * @return Overlap of two tiles in the coordinates of the second tile
+	 */
+	private static Rectangle secondRegion(Rectangle region1, float[] p1, float[] p2) {
+		int dx = Math.round(p2[0] - p1[0]);
+		int dy = Math.round(p2[1] - p1[1]);
+		return new Rectangle(region1.x - dx, region1.y - dy, region1.width, region1.height);
+	}
+
+	/**
+	 * Register pairs of tiles in parallel.
+	 * 
+	 * @param pairs Pairs of tile indices to register
+	 * @param dimensionality 2 or 3
+	 * @param bytesPerThread Memory needed by each thread
+	 * @param registration Registration of a single pair
+	 * @return Registration results, in the order of {@code pairs}
+	 */
+	public PairTable registerPairs(List<int[]> pairs, int dimensionality, long bytesPerThread, PairRegistration registration) {
+		PairTable table = new PairTable(pairs.size(), dimensionality);
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int k = 0; k < pairs.size(); k++) {
+			int index = k;
+			int[] pair = pairs.get(k);
+			table.setTiles(index, pair[0], pair[1]);
+			tasks.add(() -> {
+				float[] shift = registration.register(pair[0], pair[1]);
+				if (shift != null) table.setResult(index, shift);
+				return null;
+			});
+		}
+		invokeAll(tasks, Math.min(getParallelism(bytesPerThread), pairs.size()));
+		return table;
+	}
+
+	private static void invokeAll(List<Callable<Void>> tasks, int parallelism) {
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during pairwise registration", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new RuntimeException("Error during pairwise registration", exc.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Get the workspace of the current thread, allocating it on first use.
+	 * 
+	 * @param maxWidth Maximum width of the images to correlate
+	 * @param maxHeight Maximum height of the images to correlate
+	 * @return Phase correlation workspace of the current thread
+	 */
+	public PhaseCorrelation workspace(int maxWidth, int maxHeight) {
+		PhaseCorrelation workspace = workspaces.get();
+		if (workspace == null || !workspace.fits(maxWidth, maxHeight)) {
+			workspace = new PhaseCorrelation(maxWidth, maxHeight);
+			workspaces.set(workspace);
+		}
+		return workspace;
+	}
+
+	private static float[] registerPairwise(ImagePlus imp1, float[] p1, ImagePlus imp2, float[] p2, StitchingParameters params) {
+		Rectangle region1 = overlap(p1, imp1, p2, imp2);
+		if (region1.isEmpty()) return null;
+		Rectangle region2 = secondRegion(region1, p1, p2);
+		Roi roi1 = new Roi(region1.x, region1.y, region1.width, region1.height);
+		Roi roi2 = new Roi(region2.x, region2.y, region2.width, region2.height);
+		PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise(imp1, imp2, roi1, roi2, 1, 1, params);
+		if (result == null) return null;
+		return new float[] { result.getOffset(0), result.getOffset(1), result.getOffset(2), result.getCrossCorrelation() };
+	}
+
+	/**
+	 * Get the overlap of two tiles in the coordinates of the first tile.
+	 * 
+	 * @return Overlapping region, empty if the tiles do not overlap
+	 */
+	static Rectangle overlap(float[] p1, ImagePlus imp1, float[] p2, ImagePlus imp2) {
+		int dx = Math.round(p2[0] - p1[0]);
+		int dy = Math.round(p2[1] - p1[1]);
+		return new Rectangle(imp1.getWidth(), imp1.getHeight()).intersection(new Rectangle(dx, dy, imp2.getWidth(), imp2.getHeight()));
+	}
+
+	/**
+	 * Get a region of the first plane of a tile as float image, either of a
+	 * single channel or averaged over all channels.
+	 * 
+	 * @param imp Tile
+	 * @param channel Channel (1-based), or 0 for the average of all channels
+	 * @param region Region to get, or {@code null} for the whole plane
+	 * @return Float copy of the region
+	 */
+	static FloatProcessor registrationPlane(ImagePlus imp, int channel, Rectangle region) {
+		ImageStack stack = imp.getStack();
+		int first = channel > 0 ? channel : 1;
+		int last = channel > 0 ? channel : imp.getNChannels();
+		FloatProcessor sum = null;
+		for (int c = first; c <= last; c++) {
+			ImageProcessor ip = stack.getProcessor(imp.getStackIndex(c, 1, 1));
+			FloatProcessor fp = region == null ? (FloatProcessor) ip.duplicate().convertToFloat() : crop(ip, region);
+			if (sum == null) {
+				sum = fp;
+			} else {
+				float[] sumPixels = (float[]) sum.getPixels();
+				float[] pixels = (float[]) fp.getPixels();
+				for (int i = 0; i < sumPixels.length; i++) sumPixels[i] += pixels[i];
+			}
+		}
+		if (last > first) sum.multiply(1.0 / (last - first + 1));
+		return sum;
+	}
+
+	static FloatProcessor crop(ImageProcessor ip, Rectangle region) {
+		synchronized (ip) {
+			ip.setRoi(region.x, region.y, region.width, region.height);
+			ImageProcessor cropped = ip.crop();
+			ip.resetRoi();
+			return (FloatProcessor) (cropped instanceof FloatProcessor ? cropped : cropped.convertToFloat());
+		}
+	}
+}
@@ -24,11 +24,14 @@
 package ch.fmi.stitching;
 
 import ij.ImagePlus;
+
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeSet;
 
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.TranslationModel2D;
@@ -42,6 +45,8 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 
+import org.scijava.log.Logger;
+
 /**
  * 
  * @author Jan Eglinger
@@ -56,6 +61,9 @@ public class StitchingUtils {
 	public static final int MIN_FUSION = 4;
 	public static final int OVERLAP_FUSION = 5;
 
+	/** Default minimum overlap of a pair of tiles (as fraction of the smaller tile) to register it */
+	public static final double DEFAULT_MIN_OVERLAP = 0.01;
+
 	private StitchingUtils() {
 		// prevent instantiation of static utility class
 	}
@@ -86,7 +94,7 @@ public class StitchingUtils {
 	 * @return List of transformation models
 	 */
 	public static ArrayList<InvertibleBoundable> computeStitching(ArrayList<ImagePlus> images, List<float[]> positions, int dimensionality, boolean computeOverlap) {
-		return computeStitching(images, positions, dimensionality, computeOverlap, false);
+		return computeStitching(images, positions, dimensionality, computeOverlap, 0, 1, DEFAULT_MIN_OVERLAP, new RegistrationEngine(0, 0));
 	}
 
 	/**
@@ -98,7 +106,11 @@ public class StitchingUtils {
 	 * @param computeOverlap If true, compute the exact tile overlap; if false, trust the known coordinates
 	 * @param saveMemory If true, save memory at the cost of computation time; if false, use more RAM 
 	 * @return List of transformation models
+	 * @deprecated Use
+	 *             {@link #computeStitching(ArrayList, List, int, boolean, int, int, double, RegistrationEngine)}
+	 *             with a {@link RegistrationEngine} limiting threads and memory
 	 */
+	@Deprecated
 	public static ArrayList<InvertibleBoundable> computeStitching(ArrayList<ImagePlus> images, List<float[]> positions, int dimensionality, boolean computeOverlap, boolean saveMemory) {
 		// Create parameters
 		StitchingParameters params = defaultParameters();
@@ -109,6 +121,35 @@ public class StitchingUtils {
 		return computeStitching(images, positions, params);
 	}
 
+	/**
+	 * Compute optimal tile positions from a list of known initial positions,
+	 * registering only pairs of tiles that overlap by at least a minimum
+	 * fraction.
+	 * 
+	 * @param images List of tiles
+	 * @param positions List of known positions
+	 * @param dimensionality 2 or 3 (coarse-to-fine registration is only used in 2D)
+	 * @param computeOverlap If true, compute the exact tile overlap; if false, trust the known coordinates
+	 * @param registrationChannel Channel used for registration (1-based), or 0 to use the average of all channels
+	 * @param binning Binning factor of the coarsest registration level, or 1 to register at full resolution only
+	 * @param minOverlap Minimum overlap of a pair of tiles (as fraction of the smaller tile) to register it
+	 * @param engine {@link RegistrationEngine} registering the pairs of tiles
+	 * @return List of transformation models
+	 */
+	public static ArrayList<InvertibleBoundable> computeStitching(ArrayList<ImagePlus> images, List<float[]> positions, int dimensionality, boolean computeOverlap, int registrationChannel, int binning, double minOverlap, RegistrationEngine engine) {
+		StitchingParameters params = defaultParameters();
+		params.cpuMemChoice = 1;
+		params.dimensionality = dimensionality;
+		params.computeOverlap = computeOverlap;
+		params.channel1 = registrationChannel;
+		params.channel2 = registrationChannel;
+
+		if (binning < 2 || dimensionality != 2 || !computeOverlap) {
+			return computeStitching(images, positions, params, minOverlap, engine);
+		}
+		return CoarseToFineRegistration.register(images, positions, params, binning, minOverlap, engine);
+	}
+
 	/**
 	 * Compute optimal tile positions from a list of known initial positions
 	 * 
@@ -118,38 +159,108 @@ public class StitchingUtils {
 	 * @return List of transformation models
 	 */
 	public static ArrayList<InvertibleBoundable> computeStitching(ArrayList<ImagePlus> images, List<float[]> positions, StitchingParameters params) {
+		return computeStitching(images, positions, params, DEFAULT_MIN_OVERLAP);
+	}
+
+	/**
+	 * Compute optimal tile positions from a list of known initial positions,
+	 * registering only pairs of tiles that overlap by at least a minimum
+	 * fraction.
+	 * 
+	 * @param images List of tiles
+	 * @param positions List of known positions
+	 * @param params {@link StitchingParameters} defining the options for stitching
+	 * @param minOverlap Minimum overlap of a pair of tiles (as fraction of the smaller tile) to register it
+	 * @return List of transformation models
+	 */
+	public static ArrayList<InvertibleBoundable> computeStitching(ArrayList<ImagePlus> images, List<float[]> positions, StitchingParameters params, double minOverlap) {
+		return computeStitching(images, positions, params, minOverlap, RegistrationEngine.create(params.cpuMemChoice == 0));
+	}
+
+	/**
+	 * Compute optimal tile positions from a list of known initial positions,
+	 * registering only pairs of tiles that overlap by at least a minimum
+	 * fraction.
+	 * 
+	 * @param images List of tiles
+	 * @param positions List of known positions
+	 * @param params {@link StitchingParameters} defining the options for stitching
+	 * @param minOverlap Minimum overlap of a pair of tiles (as fraction of the smaller tile) to register it
+	 * @param engine {@link RegistrationEngine} registering the pairs of tiles
+	 * @return List of transformation models
+	 */
+	public static ArrayList<InvertibleBoundable> computeStitching(ArrayList<ImagePlus> images, List<float[]> positions, StitchingParameters params, double minOverlap, RegistrationEngine engine) {
 		// TODO consider changing signature to List instead of ArrayList
 		// (although Fusion.fuse requires ArrayList anyways...)
 		if (images.size() != positions.size()) {
 			throw new RuntimeException("number of images (" + images.size() + ") != number of positions (" + positions.size() + ")");
 		}
 
-		// Create tile list
-		ArrayList<ImageCollectionElement> elements = new ArrayList<>();
+		if (!params.computeOverlap) {
+			// Trust the known coordinates, only optimize globally
+			ArrayList<ImagePlusTimePoint> tiles = createTiles(images, positions, params.dimensionality);
+			ArrayList<ImageCollectionElement> elements = new ArrayList<>();
+			for (ImagePlusTimePoint tile : tiles) {
+				elements.add(tile.getElement());
+			}
+			tiles = CollectionStitchingImgLib.stitchCollection(elements, params);
+			ArrayList<InvertibleBoundable> models = new ArrayList<>();
+			for (ImagePlusTimePoint tile : tiles) {
+				models.add((InvertibleBoundable) tile.getModel());
+			}
+			return models;
+		}
+
+		PairTable table = engine.register(images, positions, overlappingPairs(images, positions, minOverlap, engine.getLogger()), params);
+		return GlobalAlignment.optimize(table, positions, params, engine.getLogger());
+	}
+
+	/**
+	 * Find the pairs of tiles overlapping by at least a minimum fraction, and
+	 * log how many pairs were kept and dropped.
+	 * 
+	 * @param images List of tiles
+	 * @param positions List of known positions
+	 * @param minOverlap Minimum overlap (as fraction of the smaller tile)
+	 * @param log {@link Logger} reporting the kept and dropped pairs, or
+	 *          {@code null}
+	 * @return Pairs of tile indices
+	 */
+	static List<int[]> overlappingPairs(List<ImagePlus> images, List<float[]> positions, double minOverlap, Logger log) {
+		List<int[]> sizes = new ArrayList<>();
+		for (ImagePlus imp : images) {
+			sizes.add(new int[] { imp.getWidth(), imp.getHeight() });
+		}
+		TileIndex.Pairs pairs = new TileIndex(positions, sizes).overlappingPairs(minOverlap);
+		if (log != null) log.info("Registering " + pairs.getPairs().size() + " tile pairs (" + pairs.getDroppedCount() + " pairs with less than " + String.format("%.1f", 100 * minOverlap) + "% overlap dropped)");
+		return pairs.getPairs();
+	}
+
+	/**
+	 * Create the tiles for global optimization, placed at their known positions.
+	 * 
+	 * @param images List of tiles
+	 * @param positions List of known positions
+	 * @param dimensionality 2 or 3
+	 * @return List of tiles
+	 */
+	static ArrayList<ImagePlusTimePoint> createTiles(List<ImagePlus> images, List<float[]> positions, int dimensionality) {
+		ArrayList<ImagePlusTimePoint> tiles = new ArrayList<>();
 		float[] pos;
 		for (int i = 0; i < images.size(); i++) {
 			ImageCollectionElement element = new ImageCollectionElement(null, i);
-			element.setDimensionality( params.dimensionality );
-			element.setModel(params.dimensionality == 2 ? new TranslationModel2D() : new TranslationModel3D());
+			element.setDimensionality(dimensionality);
+			element.setModel(dimensionality == 2 ? new TranslationModel2D() : new TranslationModel3D());
 			element.setImagePlus(images.get(i));
-			if (params.dimensionality == 2) {
+			if (dimensionality == 2) {
 				element.setOffset(positions.get(i));
 			} else {
 				pos = positions.get(i);
 				element.setOffset(new float[] {pos[0], pos[1], 0});
 			}
-			elements.add(element);
-		}
-
-		// Compute stitching
-		ArrayList<ImagePlusTimePoint> tiles = CollectionStitchingImgLib.stitchCollection(elements, params);
-
-		// Extract models
-		ArrayList<InvertibleBoundable> models = new ArrayList<>();
-		for (ImagePlusTimePoint tile : tiles) {
-			models.add((InvertibleBoundable) tile.getModel());
+			tiles.add(new ImagePlusTimePoint(images.get(i), i, 1, dimensionality == 2 ? new TranslationModel2D() : new TranslationModel3D(), element));
 		}
-		return models;
+		return tiles;
 	}
 
 	/**
@@ -194,6 +305,102 @@ public class StitchingUtils {
 		return fuseTiles(images, models, dimensionality, BLENDING_FUSION);
 	}
 
+	/**
+	 * Compute the regions of each tile that overlap with any other tile, given
+	 * the initial tile positions. The regions of a tile are disjoint, so that
+	 * no pixel is read twice.
+	 * 
+	 * @param positions List of initial positions (2D pixel coordinates)
+	 * @param width Width of a single tile
+	 * @param height Height of a single tile
+	 * @return For each tile, a list of disjoint overlap regions in tile
+	 *         coordinates
+	 */
+	public static List<List<Rectangle>> overlapRegions(List<float[]> positions, int width, int height) {
+		List<List<Rectangle>> overlaps = new ArrayList<>();
+		for (int i = 0; i < positions.size(); i++) {
+			overlaps.add(new ArrayList<>());
+		}
+		Rectangle bounds = new Rectangle(0, 0, width, height);
+		for (int[] pair : new TileIndex(positions, width, height).overlappingPairs(0).getPairs()) {
+			for (int k = 0; k < 2; k++) {
+				float[] p = positions.get(pair[k]);
+				float[] q = positions.get(pair[1 - k]);
+				// other tile in local coordinates of this tile, covering any rounding of the offset
+				int x0 = (int) Math.floor(q[0] - p[0]);
+				int y0 = (int) Math.floor(q[1] - p[1]);
+				int x1 = (int) Math.ceil(q[0] - p[0]) + width;
+				int y1 = (int) Math.ceil(q[1] - p[1]) + height;
+				Rectangle region = bounds.intersection(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+				if (!region.isEmpty()) overlaps.get(pair[k]).add(region);
+			}
+		}
+		List<List<Rectangle>> regions = new ArrayList<>();
+		for (List<Rectangle> tileOverlaps : overlaps) {
+			regions.add(disjoint(tileOverlaps));
+		}
+		return regions;
+	}
+
+	/**
+	 * Split the union of rectangles into disjoint rectangles: the union is cut
+	 * into bands at all top and bottom edges, and rectangles of consecutive
+	 * bands covering the same columns are merged again.
+	 * 
+	 * @param rectangles Possibly overlapping rectangles
+	 * @return Disjoint rectangles covering the same pixels, sorted by y, then x
+	 */
+	static List<Rectangle> disjoint(List<Rectangle> rectangles) {
+		TreeSet<Integer> edges = new TreeSet<>();
+		for (Rectangle r : rectangles) {
+			edges.add(r.y);
+			edges.add(r.y + r.height);
+		}
+		List<Rectangle> result = new ArrayList<>();
+		List<Rectangle> previous = new ArrayList<>();
+		List<Integer> ys = new ArrayList<>(edges);
+		for (int k = 0; k + 1 < ys.size(); k++) {
+			int y0 = ys.get(k);
+			int y1 = ys.get(k + 1);
+			// columns covered by this band
+			List<int[]> columns = new ArrayList<>();
+			for (Rectangle r : rectangles) {
+				if (r.y <= y0 && r.y + r.height >= y1) columns.add(new int[] { r.x, r.x + r.width });
+			}
+			columns.sort((a, b) -> Integer.compare(a[0], b[0]));
+			List<Rectangle> band = new ArrayList<>();
+			int[] open = null;
+			for (int[] column : columns) {
+				if (open != null && column[0] <= open[1]) {
+					open[1] = Math.max(open[1], column[1]);
+					continue;
+				}
+				if (open != null) band.add(extend(previous, result, open, y0, y1));
+				open = column.clone();
+			}
+			if (open != null) band.add(extend(previous, result, open, y0, y1));
+			previous = band;
+		}
+		result.sort((a, b) -> a.y != b.y ? Integer.compare(a.y, b.y) : Integer.compare(a.x, b.x));
+		return result;
+	}
+
+	/**
+	 * Extend the rectangle of the previous band covering the same columns, or
+	 * start a new one.
+	 */
+	private static Rectangle extend(List<Rectangle> previous, List<Rectangle> result, int[] columns, int y0, int y1) {
+		for (Rectangle r : previous) {
+			if (r.x == columns[0] && r.x + r.width == columns[1] && r.y + r.height == y0) {
+				r.height = y1 - r.y;
+				return r;
+			}
+		}
+		Rectangle r = new Rectangle(columns[0], y0, columns[1] - columns[0], y1 - y0);
+		result.add(r);
+		return r;
+	}
+
 	/**
 	 * Create a preview image of a tile layout
 	 * 
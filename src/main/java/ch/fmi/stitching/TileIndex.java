@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatial index of tile positions, finding the pairs of overlapping tiles.
+ * <p>
+ * Tiles are hashed into a uniform grid with cells as large as the largest
+ * tile, so each tile only needs to be compared with the tiles in the few
+ * cells it covers, instead of with all other tiles.
+ * </p>
+ */
+public class TileIndex {
+
+	private final List<float[]> positions;
+	private final List<int[]> sizes;
+	private final double cellSize;
+	private final Map<Long, List<Integer>> cells = new HashMap<>();
+
+	/**
+	 * Pairs of overlapping tiles.
+	 */
+	public static class Pairs {
+
+		private final List<int[]> kept;
+		private final int dropped;
+
+		Pairs(List<int[]> kept, int dropped) {
+			this.kept = kept;
+			this.dropped = dropped;
+		}
+
+		/**
+		 * @return Pairs {@code {i, j}} (with {@code i < j}) overlapping by at least
+		 *         the minimum overlap, sorted by {@code i}, then {@code j}
+		 */
+		public List<int[]> getPairs() {
+			return kept;
+		}
+
+		/**
+		 * @return Number of overlapping pairs dropped for overlapping less than the
+		 *         minimum overlap
+		 */
+		public int getDroppedCount() {
+			return dropped;
+		}
+	}
+
+	/**
+	 * @param positions Tile positions (x, y)
+	 * @param width Width of all tiles
+	 * @param height Height of all tiles
+	 */
+	public TileIndex(List<float[]> positions, int width, int height) {
+		this(positions, Collections.nCopies(positions.size(), new int[] { width, height }));
+	}
+
+	/**
+	 * @param positions Tile positions (x, y)
+	 * @param sizes Tile sizes (width, height)
+	 */
+	public TileIndex(List<float[]> positions, List<int[]> sizes) {
+		if (positions.size() != sizes.size()) {
+			throw new IllegalArgumentException("number of positions (" + positions.size() + ") != number of sizes (" + sizes.size() + ")");
+		}
+		this.positions = positions;
+		this.sizes = sizes;
+		int maxSize = 1;
+		for (int[] size : sizes) {
+			maxSize = Math.max(maxSize, Math.max(size[0], size[1]));
+		}
+		cellSize = maxSize;
+		for (int i = 0; i < positions.size(); i++) {
+			for (long cx = cell(minX(i)); cx <= cell(maxX(i)); cx++) {
+				for (long cy = cell(minY(i)); cy <= cell(maxY(i)); cy++) {
+					cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>()).add(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find all pairs of overlapping tiles.
+	 * 
+	 * @param minOverlap Minimum overlap area, as fraction of the area of the
+	 *          smaller tile of a pair
+	 * @return Pairs overlapping by at least {@code minOverlap}, and the number of
+	 *         pairs dropped
+	 */
+	public Pairs overlappingPairs(double minOverlap) {
+		List<int[]> kept = new ArrayList<>();
+		int dropped = 0;
+		for (int i = 0; i < positions.size(); i++) {
+			for (long cx = cell(minX(i)); cx <= cell(maxX(i)); cx++) {
+				for (long cy = cell(minY(i)); cy <= cell(maxY(i)); cy++) {
+					for (int j : cells.get(key(cx, cy))) {
+						if (j <= i) continue;
+						double overlapWidth = Math.min(maxX(i), maxX(j)) - Math.max(minX(i), minX(j));
+						double overlapHeight = Math.min(maxY(i), maxY(j)) - Math.max(minY(i), minY(j));
+						if (overlapWidth <= 0 || overlapHeight <= 0) continue;
+						// count each pair only in the cell holding the corner of the overlap
+						if (cell(Math.max(minX(i), minX(j))) != cx || cell(Math.max(minY(i), minY(j))) != cy) continue;
+						double smallerArea = Math.min(area(i), area(j));
+						if (overlapWidth * overlapHeight >= minOverlap * smallerArea) {
+							kept.add(new int[] { i, j });
+						} else {
+							dropped++;
+						}
+					}
+				}
+			}
+		}
+		kept.sort(Comparator.<int[]> comparingInt(p -> p[0]).thenComparingInt(p -> p[1]));
+		return new Pairs(kept, dropped);
+	}
+
+	private double minX(int i) {
+		return positions.get(i)[0];
+	}
+
+	private double maxX(int i) {
+		return positions.get(i)[0] + sizes.get(i)[0];
+	}
+
+	private double minY(int i) {
+		return positions.get(i)[1];
+	}
+
+	private double maxY(int i) {
+		return positions.get(i)[1] + sizes.get(i)[1];
+	}
+
+	private double area(int i) {
+		return (double) sizes.get(i)[0] * sizes.get(i)[1];
+	}
+
+	private long cell(double coordinate) {
+		return (long) Math.floor(coordinate / cellSize);
+	}
+
+	private static long key(long cx, long cy) {
+		return (cx << 32) ^ (cy & 0xffffffffL);
+	}
+}
@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Run tile preparation as a pipeline of concurrent stages.
+ * <p>
+ * A pipeline starts with a read stage, followed by any number of processing
+ * stages (e.g. projection, flat-field correction). Each stage runs its own
+ * number of worker threads, and consecutive stages are connected by bounded
+ * queues: when a stage falls behind, the stages before it block instead of
+ * filling up memory. This way, reading the next tiles overlaps with processing
+ * the previous ones. Results are returned in tile order.
+ * </p>
+ * <pre>
+ * ArrayList&lt;ImagePlus&gt; tiles = TilePipeline.read(2, dataset::openSeries)
+ * 	.then(4, this::createMIP).run(nSeries);
+ * </pre>
+ *
+ * @param <T> Type of the items produced by the last stage
+ */
+public class TilePipeline<T> {
+
+	/** Default number of items buffered between two stages, per worker */
+	public static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+	/** Read stage: produces the item for a given tile index. */
+	@FunctionalInterface
+	public interface Reader<T> {
+
+		T read(int index) throws Exception;
+	}
+
+	/** Processing stage: transforms an item of the previous stage. */
+	@FunctionalInterface
+	public interface Processor<S, T> {
+
+		T process(S item) throws Exception;
+	}
+
+	private static final Item END = new Item(-1, null);
+
+	private final Reader<?> reader;
+	private final int nReaders;
+	private final List<Stage> stages;
+
+	private TilePipeline(Reader<?> reader, int nReaders, List<Stage> stages) {
+		this.reader = reader;
+		this.nReaders = Math.max(1, nReaders);
+		this.stages = stages;
+	}
+
+	/**
+	 * Create a pipeline with a read stage.
+	 *
+	 * @param nWorkers Number of concurrent readers
+	 * @param reader Function reading the tile with a given index
+	 * @return New pipeline
+	 */
+	public static <T> TilePipeline<T> read(int nWorkers, Reader<T> reader) {
+		return new TilePipeline<>(reader, nWorkers, new ArrayList<>());
+	}
+
+	/**
+	 * Append a processing stage.
+	 *
+	 * @param nWorkers Number of concurrent workers of this stage
+	 * @param processor Function applied to every item of the previous stage
+	 * @return New pipeline ending with the added stage
+	 */
+	public <R> TilePipeline<R> then(int nWorkers, Processor<T, R> processor) {
+		List<Stage> newStages = new ArrayList<>(stages);
+		newStages.add(new Stage(processor, Math.max(1, nWorkers)));
+		return new TilePipeline<>(reader, nReaders, newStages);
+	}
+
+	/**
+	 * Run the pipeline on tile indices {@code 0} to {@code nItems - 1}.
+	 *
+	 * @param nItems Number of tiles
+	 * @return Results of the last stage, in tile order
+	 * @throws IOException if any stage fails with a checked exception (which is
+	 *           attached as the cause) or the pipeline is interrupted
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<T> run(int nItems) throws IOException {
+		Object[] results = new Object[nItems];
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		AtomicInteger nextIndex = new AtomicInteger();
+
+		int nThreads = nReaders;
+		for (Stage stage : stages) {
+			nThreads += stage.nWorkers;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			// queue between stage s-1 and stage s (the reader counts as stage -1)
+			List<BlockingQueue<Item>> queues = new ArrayList<>();
+			for (Stage stage : stages) {
+				queues.add(new ArrayBlockingQueue<>(stage.nWorkers *
+					DEFAULT_QUEUE_CAPACITY));
+			}
+
+			BlockingQueue<Item> readerOutput = queues.isEmpty() ? null : queues.get(
+				0);
+			AtomicInteger activeReaders = new AtomicInteger(nReaders);
+			for (int w = 0; w < nReaders; w++) {
+				futures.add(executor.submit(() -> {
+					try {
+						int index;
+						while (failure.get() == null && (index = nextIndex
+							.getAndIncrement()) < nItems)
+						{
+							deliver(new Item(index, reader.read(index)), readerOutput,
+								results);
+						}
+					}
+					catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+					finally {
+						finish(activeReaders, readerOutput, stages.isEmpty() ? 0 : stages
+							.get(0).nWorkers);
+					}
+					return null;
+				}));
+			}
+
+			for (int s = 0; s < stages.size(); s++) {
+				Stage stage = stages.get(s);
+				BlockingQueue<Item> input = queues.get(s);
+				BlockingQueue<Item> output = s + 1 < queues.size() ? queues.get(s + 1)
+					: null;
+				int nNextWorkers = s + 1 < stages.size() ? stages.get(s + 1).nWorkers
+					: 0;
+				AtomicInteger activeWorkers = new AtomicInteger(stage.nWorkers);
+				for (int w = 0; w < stage.nWorkers; w++) {
+					futures.add(executor.submit(() -> {
+						try {
+							Item item;
+							while ((item = input.take()) != END) {
+								// keep draining after a failure, so upstream stages never block
+								if (failure.get() != null) continue;
+								try {
+									deliver(new Item(item.index, stage.processor.process(
+										item.value)), output, results);
+								}
+								catch (InterruptedException exc) {
+									throw exc;
+								}
+								catch (Throwable t) {
+									failure.compareAndSet(null, t);
+								}
+							}
+						}
+						catch (Throwable t) {
+							failure.compareAndSet(null, t);
+						}
+						finally {
+							finish(activeWorkers, output, nNextWorkers);
+						}
+						return null;
+					}));
+				}
+			}
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while preparing tiles", exc);
+		}
+		catch (ExecutionException exc) {
+			failure.compareAndSet(null, exc.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		Throwable cause = failure.get();
+		if (cause instanceof IOException) throw (IOException) cause;
+		if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+		if (cause instanceof Error) throw (Error) cause;
+		if (cause != null) throw new IOException("Error preparing tiles", cause);
+
+		ArrayList<T> list = new ArrayList<>();
+		for (Object result : results) {
+			list.add((T) result);
+		}
+		return list;
+	}
+
+	private static void deliver(Item item, BlockingQueue<Item> output,
+		Object[] results) throws InterruptedException
+	{
+		if (output == null) {
+			results[item.index] = item.value;
+		}
+		else {
+			output.put(item);
+		}
+	}
+
+	/**
+	 * Mark one worker of a stage as done. The last worker of a stage signals the
+	 * end of input to each worker of the next stage.
+	 */
+	private static void finish(AtomicInteger activeWorkers,
+		BlockingQueue<Item> output, int nNextWorkers)
+	{
+		if (activeWorkers.decrementAndGet() > 0 || output == null) return;
+		try {
+			for (int i = 0; i < nNextWorkers; i++) {
+				output.put(END);
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Stage {
+
+		private final Processor<Object, Object> processor;
+		private final int nWorkers;
+
+		@SuppressWarnings("unchecked")
+		private Stage(Processor<?, ?> processor, int nWorkers) {
+			this.processor = (Processor<Object, Object>) processor;
+			this.nWorkers = nWorkers;
+		}
+	}
+
+	private static class Item {
+
+		private final int index;
+		private final Object value;
+
+		private Item(int index, Object value) {
+			this.index = index;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching.visiview;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import loci.formats.meta.IMetadata;
+
+/**
+ * Local library of precomputed illumination profiles.
+ * <p>
+ * Profiles are keyed by channel name, objective, binning and image size, so
+ * that they can be reused for all datasets acquired with the same microscope
+ * configuration. Datasets lacking any of this metadata are not matched to
+ * stored profiles. Flat-field profiles are stored as the inverse of the
+ * normalized flat field, ready to be multiplied with the tiles; dark-field
+ * profiles are stored as they are. Each profile is a file of raw float pixels
+ * that is memory-mapped when read, and kept in a cache shared by all stores
+ * of the running JVM, so that a batch of datasets reads each profile only
+ * once.
+ * </p>
+ */
+public class IlluminationProfileStore {
+
+	/** Kind of the inverse, normalized flat-field profiles */
+	public static final String FLAT = "flat";
+
+	/** Kind of the dark-field profiles */
+	public static final String DARK = "dark";
+
+	private static final String SUFFIX = ".profile";
+	private static final int MAGIC = 0x464d4946; // "FMIF"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final String UNKNOWN = "unknown";
+
+	// NB: shared by all stores, keyed by path of the profile file
+	private static final Map<String, Profile> loaded = new ConcurrentHashMap<>();
+
+	private final File directory;
+
+	/**
+	 * @param directory Profile directory (created if necessary)
+	 */
+	public IlluminationProfileStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return Default profile directory, in the home folder of the user
+	 */
+	public static File defaultDirectory() {
+		return new File(System.getProperty("user.home"),
+			".fmi-stitching/illumination-profiles");
+	}
+
+	/**
+	 * Build the profile key of a channel from the dataset metadata. Missing
+	 * metadata is replaced by {@code "unknown"}; such keys are not used by
+	 * {@link #get(IMetadata, int, int, String, int, int)} and
+	 * {@link #put(IMetadata, int, String, int, int, float[][])}.
+	 *
+	 * @param metadata Dataset metadata
+	 * @param series Series index
+	 * @param channel Channel index (0-based)
+	 * @param width Image width
+	 * @param height Image height
+	 * @return Profile key
+	 */
+	public static String key(IMetadata metadata, int series, int channel,
+		int width, int height)
+	{
+		StringBuilder key = new StringBuilder();
+		for (String part : keyParts(metadata, series, channel)) {
+			key.append(part != null ? part : UNKNOWN).append('_');
+		}
+		return key.append(width).append('x').append(height).toString();
+	}
+
+	/**
+	 * Check that the channel name, objective and binning of all channels are
+	 * part of the metadata. Otherwise, profiles of different microscope
+	 * configurations would share the same key.
+	 *
+	 * @param metadata Dataset metadata
+	 * @param series Series index
+	 * @param nChannels Number of channels
+	 * @return true if the keys of all channels are complete
+	 */
+	public static boolean hasCompleteKeys(IMetadata metadata, int series,
+		int nChannels)
+	{
+		for (int c = 0; c < nChannels; c++) {
+			for (String part : keyParts(metadata, series, c)) {
+				if (part == null) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Channel name, objective and binning, each {@code null} if it is
+	 *         not part of the metadata
+	 */
+	private static String[] keyParts(IMetadata metadata, int series,
+		int channel)
+	{
+		String channelName = null;
+		String objective = null;
+		String binning = null;
+		try {
+			channelName = metadata.getChannelName(series, channel);
+		}
+		catch (RuntimeException exc) {
+			// not part of the metadata
+		}
+		try {
+			if (metadata.getObjectiveModel(0, 0) != null) objective = metadata
+				.getObjectiveModel(0, 0);
+			else if (metadata.getObjectiveNominalMagnification(0, 0) != null) {
+				objective = metadata.getObjectiveNominalMagnification(0, 0) + "x";
+			}
+		}
+		catch (RuntimeException exc) {
+			// not part of the metadata
+		}
+		try {
+			if (metadata.getDetectorSettingsBinning(series, channel) != null) {
+				binning = metadata.getDetectorSettingsBinning(series, channel)
+					.toString();
+			}
+		}
+		catch (RuntimeException exc) {
+			// not part of the metadata
+		}
+		return new String[] { channelName, objective, binning };
+	}
+
+	/**
+	 * @param key Profile key
+	 * @param kind {@link #FLAT} or {@link #DARK}
+	 * @param width Image width
+	 * @param height Image height
+	 * @return Profile pixels (shared, must not be modified), or {@code null} if
+	 *         there is no matching profile
+	 */
+	public float[] get(String key, String kind, int width, int height) {
+		File file = profileFile(key, kind);
+		if (!file.isFile()) return null;
+		String path = file.getAbsolutePath();
+		long lastModified = file.lastModified();
+		Profile profile = loaded.get(path);
+		if (profile == null || profile.lastModified != lastModified) {
+			try {
+				profile = new Profile(lastModified, read(file, width, height));
+			}
+			catch (IOException exc) {
+				return null;
+			}
+			// replaces the profile previously loaded from the same file
+			loaded.put(path, profile);
+		}
+		return profile.pixels;
+	}
+
+	/**
+	 * Store a profile, replacing any existing profile with the same key.
+	 *
+	 * @param key Profile key
+	 * @param kind {@link #FLAT} or {@link #DARK}
+	 * @param width Image width
+	 * @param height Image height
+	 * @param profile Profile pixels
+	 * @throws IOException if the profile could not be written
+	 */
+	public void put(String key, String kind, int width, int height,
+		float[] profile) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create profile directory " +
+				directory);
+		}
+		// write to a temporary file first, so readers never see partial profiles
+		File tmp = File.createTempFile("profile", ".tmp", directory);
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(width);
+				out.writeInt(height);
+				for (float v : profile)
+					out.writeFloat(v);
+			}
+			File file = profileFile(key, kind);
+			Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+			loaded.remove(file.getAbsolutePath());
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Get the profiles of all channels of a dataset.
+	 *
+	 * @param metadata Dataset metadata
+	 * @param series Series index
+	 * @param nChannels Number of channels
+	 * @param kind {@link #FLAT} or {@link #DARK}
+	 * @param width Image width
+	 * @param height Image height
+	 * @return Profiles per channel, or {@code null} if any channel has no
+	 *         matching profile or an incomplete key (see
+	 *         {@link #hasCompleteKeys})
+	 */
+	public float[][] get(IMetadata metadata, int series, int nChannels,
+		String kind, int width, int height)
+	{
+		if (!hasCompleteKeys(metadata, series, nChannels)) return null;
+		float[][] profiles = new float[nChannels][];
+		for (int c = 0; c < nChannels; c++) {
+			profiles[c] = get(key(metadata, series, c, width, height), kind, width,
+				height);
+			if (profiles[c] == null) return null;
+		}
+		return profiles;
+	}
+
+	/**
+	 * Store the profiles of all channels of a dataset, unless the key of any
+	 * channel is incomplete (see {@link #hasCompleteKeys}).
+	 *
+	 * @param metadata Dataset metadata
+	 * @param series Series index
+	 * @param kind {@link #FLAT} or {@link #DARK}
+	 * @param width Image width
+	 * @param height Image height
+	 * @param profiles Profiles per channel
+	 * @return true if the profiles were stored
+	 * @throws IOException if a profile could not be written
+	 */
+	public boolean put(IMetadata metadata, int series, String kind, int width,
+		int height, float[][] profiles) throws IOException
+	{
+		if (!hasCompleteKeys(metadata, series, profiles.length)) return false;
+		for (int c = 0; c < profiles.length; c++) {
+			put(key(metadata, series, c, width, height), kind, width, height,
+				profiles[c]);
+		}
+		return true;
+	}
+
+	private File profileFile(String key, String kind) {
+		return new File(directory, key.replaceAll("[^A-Za-z0-9._-]", "_") + "." +
+			kind + SUFFIX);
+	}
+
+	private static float[] read(File file, int width, int height)
+		throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ))
+		{
+			if (channel.size() != HEADER_BYTES + 4L * width * height) {
+				throw new IOException("Unexpected size of profile " + file);
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+				.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer
+				.getInt() != width || buffer.getInt() != height)
+			{
+				throw new IOException("Not a matching illumination profile: " + file);
+			}
+			float[] profile = new float[width * height];
+			buffer.asFloatBuffer().get(profile);
+			return profile;
+		}
+	}
+
+	private static class Profile {
+
+		private final long lastModified;
+		private final float[] pixels;
+
+		private Profile(long lastModified, float[] pixels) {
+			this.lastModified = lastModified;
+			this.pixels = pixels;
+		}
+	}
+}
@@ -0,0 +1,416 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching.visiview;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import ch.fmi.stitching.StitchingUtils;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Open the series of a dataset as lazily loaded tiles.
+ * <p>
+ * Each tile is an imglib2 cell image (XYCZT, one cell per plane) wrapped as a
+ * virtual {@link ImagePlus}. Planes are only read from the dataset when they
+ * are accessed, and are kept in a cache shared by all tiles of this loader
+ * (and optionally by other loaders of the same dataset).
+ * When the cache exceeds its memory budget, the least recently used planes are
+ * evicted and will be read again on their next access.
+ * </p>
+ * <p>
+ * Optionally, only given regions of each tile are read (e.g. the regions
+ * overlapping with neighboring tiles, for registration), and all other pixels
+ * are left at zero. Only the pixels of these regions are cached, and the
+ * planes of such tiles are assembled from them on access.
+ * </p>
+ */
+public class LazyTileLoader {
+
+	/** Channel index to open tiles with all channels */
+	public static final int ALL_CHANNELS = -1;
+
+	/** Frame index to open tiles with all time points */
+	public static final int ALL_FRAMES = -1;
+
+	private final VisiviewDataset dataset;
+	private final PlaneCache cache;
+	private final List<List<Rectangle>> regions;
+
+	/**
+	 * @param dataset Dataset session to read from
+	 * @param memoryBudget Maximum number of bytes held by the plane cache
+	 */
+	public LazyTileLoader(VisiviewDataset dataset, long memoryBudget) {
+		this(dataset, memoryBudget, null);
+	}
+
+	/**
+	 * @param dataset Dataset session to read from
+	 * @param memoryBudget Maximum number of bytes held by the plane cache
+	 * @param regions For each series, the disjoint regions to read from each
+	 *          plane (see {@link StitchingUtils#overlapRegions}), or {@code null}
+	 *          to read complete planes
+	 */
+	public LazyTileLoader(VisiviewDataset dataset, long memoryBudget,
+		List<List<Rectangle>> regions)
+	{
+		this(dataset, new PlaneCache(memoryBudget), regions);
+	}
+
+	/**
+	 * Create a loader sharing its plane cache (and thereby its memory budget)
+	 * with other loaders of the same dataset.
+	 *
+	 * @param dataset Dataset session to read from
+	 * @param cache Plane cache, e.g. from {@link #getCache()} of another loader
+	 * @param regions For each series, the disjoint regions to read from each
+	 *          plane (see {@link StitchingUtils#overlapRegions}), or {@code null}
+	 *          to read complete planes
+	 */
+	public LazyTileLoader(VisiviewDataset dataset, PlaneCache cache,
+		List<List<Rectangle>> regions)
+	{
+		this.dataset = dataset;
+		this.cache = cache;
+		this.regions = regions;
+	}
+
+	/**
+	 * @return Plane cache of this loader
+	 */
+	public PlaneCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param nSeries Number of series
+	 * @return Lazily loaded tiles for the first {@code nSeries} series, in series
+	 *         order
+	 * @throws FormatException if the dataset could not be read
+	 * @throws IOException if the dataset could not be read
+	 */
+	public ArrayList<ImagePlus> openTiles(int nSeries) throws FormatException,
+		IOException
+	{
+		return openTiles(nSeries, ALL_CHANNELS);
+	}
+
+	/**
+	 * Open tiles containing a single channel. Planes of this channel are shared
+	 * with tiles of all channels opened by the same loader, so they are not read
+	 * twice (as long as they are cached).
+	 *
+	 * @param nSeries Number of series
+	 * @param channel Channel index (0-based), or {@link #ALL_CHANNELS}
+	 * @return Lazily loaded tiles for the first {@code nSeries} series, in series
+	 *         order
+	 * @throws FormatException if the dataset could not be read
+	 * @throws IOException if the dataset could not be read
+	 */
+	public ArrayList<ImagePlus> openTiles(int nSeries, int channel)
+		throws FormatException, IOException
+	{
+		return openTiles(nSeries, channel, ALL_FRAMES);
+	}
+
+	/**
+	 * Open tiles containing a single time point (and optionally a single
+	 * channel), e.g. to process a time-lapse one time point at a time.
+	 *
+	 * @param nSeries Number of series
+	 * @param channel Channel index (0-based), or {@link #ALL_CHANNELS}
+	 * @param frame Frame index (0-based), or {@link #ALL_FRAMES}
+	 * @return Lazily loaded tiles for the first {@code nSeries} series, in series
+	 *         order
+	 * @throws FormatException if the dataset could not be read
+	 * @throws IOException if the dataset could not be read
+	 */
+	public ArrayList<ImagePlus> openTiles(int nSeries, int channel, int frame)
+		throws FormatException, IOException
+	{
+		ArrayList<ImagePlus> tiles = new ArrayList<>();
+		for (int i = 0; i < nSeries; i++) {
+			tiles.add(openTile(i, channel, frame));
+		}
+		return tiles;
+	}
+
+	/**
+	 * @param series Series index
+	 * @return Lazily loaded tile
+	 * @throws FormatException if the dataset could not be read
+	 * @throws IOException if the dataset could not be read
+	 */
+	public ImagePlus openTile(int series) throws FormatException, IOException {
+		return openTile(series, ALL_CHANNELS);
+	}
+
+	/**
+	 * @param series Series index
+	 * @param channel Channel index (0-based), or {@link #ALL_CHANNELS}
+	 * @return Lazily loaded tile
+	 * @throws FormatException if the dataset could not be read
+	 * @throws IOException if the dataset could not be read
+	 */
+	public ImagePlus openTile(int series, int channel) throws FormatException,
+		IOException
+	{
+		return openTile(series, channel, ALL_FRAMES);
+	}
+
+	/**
+	 * @param series Series index
+	 * @param channel Channel index (0-based), or {@link #ALL_CHANNELS}
+	 * @param frame Frame index (0-based), or {@link #ALL_FRAMES}
+	 * @return Lazily loaded tile
+	 * @throws FormatException if the dataset could not be read
+	 * @throws IOException if the dataset could not be read
+	 */
+	public ImagePlus openTile(int series, int channel, int frame)
+		throws FormatException, IOException
+	{
+		if (regions != null) return openRegionTile(series, channel, frame);
+		switch (dataset.getPixelType(series)) {
+			case FormatTools.INT8:
+			case FormatTools.UINT8:
+				return openTile(series, channel, frame, new UnsignedByteType(),
+					pixels -> new ByteArray((byte[]) pixels));
+			case FormatTools.INT16:
+			case FormatTools.UINT16:
+				return openTile(series, channel, frame, new UnsignedShortType(),
+					pixels -> new ShortArray((short[]) pixels));
+			default:
+				return openTile(series, channel, frame, new FloatType(),
+					pixels -> new FloatArray((float[]) pixels));
+		}
+	}
+
+	private <T extends NumericType<T> & NativeType<T>, A> ImagePlus openTile(
+		int series, int channel, int frame, T type, Function<Object, A> access)
+	{
+		final int[] dims = dataset.getDimensions(series);
+		final int sizeC = channel == ALL_CHANNELS ? dims[2] : 1;
+		final int firstC = channel == ALL_CHANNELS ? 0 : channel;
+		final int sizeZ = dims[3];
+		final int sizeT = frame == ALL_FRAMES ? dims[4] : 1;
+		final int firstT = frame == ALL_FRAMES ? 0 : frame;
+		final int[] cellDims = { dims[0], dims[1], 1, 1, 1 };
+		final CellGrid grid = new CellGrid(new long[] { dims[0], dims[1], sizeC,
+			sizeZ, sizeT }, cellDims);
+		// NB: with one cell per plane, the flat cell index is the CZT plane index
+		final LazyCellImg<T, A> img = new LazyCellImg<>(grid, type, index -> {
+			int c = (int) (index % sizeC);
+			int z = (int) (index / sizeC % sizeZ);
+			int t = (int) (index / sizeC / sizeZ);
+			return new Cell<>(cellDims, new long[] { 0, 0, c, z, t }, access.apply(
+				readCached(series, firstC + c, z, firstT + t)));
+		});
+		ImagePlus imp = ImageJFunctions.wrap(img, dataset.getMetadata()
+			.getImageName(series));
+		imp.setDimensions(sizeC, sizeZ, sizeT);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	private ImagePlus openRegionTile(int series, int channel, int frame)
+		throws FormatException, IOException
+	{
+		int[] dims = dataset.getDimensions(series);
+		int sizeC = channel == ALL_CHANNELS ? dims[2] : 1;
+		int sizeT = frame == ALL_FRAMES ? dims[4] : 1;
+		ImagePlus imp = new ImagePlus(dataset.getMetadata().getImageName(series),
+			new RegionStack(series, channel == ALL_CHANNELS ? 0 : channel, sizeC,
+				dims[3], frame == ALL_FRAMES ? 0 : frame, sizeT, dims[0], dims[1],
+				dataset.getPixelType(series)));
+		imp.setDimensions(sizeC, dims[3], sizeT);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	private Object readCached(int series, int c, int z, int t) {
+		String key = series + "/" + c + "/" + z + "/" + t;
+		return cache.get(key, () -> dataset.openPlane(series, c, z, t)
+			.getPixels());
+	}
+
+	private Object readCached(int series, int c, int z, int t,
+		Rectangle region)
+	{
+		// NB: keyed by the region, so loaders reading the same regions share them
+		String key = series + "/" + c + "/" + z + "/" + t + "@" + region.x + "," +
+			region.y + "," + region.width + "x" + region.height;
+		return cache.get(key, () -> dataset.openPlane(series, c, z, t, region)
+			.getPixels());
+	}
+
+	private static ImageProcessor processor(int pixelType, int width,
+		int height, Object pixels)
+	{
+		switch (pixelType) {
+			case FormatTools.INT8:
+			case FormatTools.UINT8:
+				return pixels == null ? new ByteProcessor(width, height)
+					: new ByteProcessor(width, height, (byte[]) pixels);
+			case FormatTools.INT16:
+			case FormatTools.UINT16:
+				return pixels == null ? new ShortProcessor(width, height)
+					: new ShortProcessor(width, height, (short[]) pixels, null);
+			default:
+				return pixels == null ? new FloatProcessor(width, height)
+					: new FloatProcessor(width, height, (float[]) pixels);
+		}
+	}
+
+	/**
+	 * Planes (in CZT order) of a tile restricted to its regions, assembled from
+	 * the cached region pixels on each access.
+	 */
+	private class RegionStack extends VirtualStack {
+
+		private final int series;
+		private final int firstC;
+		private final int sizeC;
+		private final int sizeZ;
+		private final int firstT;
+		private final int sizeT;
+		private final int pixelType;
+
+		RegionStack(int series, int firstC, int sizeC, int sizeZ, int firstT,
+			int sizeT, int width, int height, int pixelType)
+		{
+			super(width, height, null, null);
+			this.series = series;
+			this.firstC = firstC;
+			this.sizeC = sizeC;
+			this.sizeZ = sizeZ;
+			this.firstT = firstT;
+			this.sizeT = sizeT;
+			this.pixelType = pixelType;
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int n) {
+			int c = firstC + (n - 1) % sizeC;
+			int z = (n - 1) / sizeC % sizeZ;
+			int t = firstT + (n - 1) / sizeC / sizeZ;
+			ImageProcessor plane = processor(pixelType, getWidth(), getHeight(),
+				null);
+			for (Rectangle region : regions.get(series)) {
+				plane.insert(processor(pixelType, region.width, region.height,
+					readCached(series, c, z, t, region)), region.x, region.y);
+			}
+			return plane;
+		}
+
+		@Override
+		public int getSize() {
+			return sizeC * sizeZ * sizeT;
+		}
+
+		@Override
+		public String getSliceLabel(int n) {
+			return null;
+		}
+	}
+
+	private interface PlaneReader {
+
+		Object read() throws FormatException, IOException;
+	}
+
+	/**
+	 * Thread-safe LRU cache of plane pixel arrays, bounded by their total size.
+	 */
+	public static class PlaneCache {
+
+		private final long maxBytes;
+		private final LinkedHashMap<String, Object> planes = new LinkedHashMap<>(
+			16, 0.75f, true);
+		private long bytes = 0;
+
+		/**
+		 * @param maxBytes Maximum number of bytes held by the cache
+		 */
+		public PlaneCache(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		private Object get(String key, PlaneReader reader) {
+			synchronized (this) {
+				Object pixels = planes.get(key);
+				if (pixels != null) return pixels;
+			}
+			// NB: read outside of the lock, so that planes can be loaded in parallel
+			Object pixels;
+			try {
+				pixels = reader.read();
+			}
+			catch (FormatException | IOException exc) {
+				throw new RuntimeException("Could not read plane " + key, exc);
+			}
+			synchronized (this) {
+				if (planes.put(key, pixels) == null) bytes += sizeOf(pixels);
+				Iterator<Map.Entry<String, Object>> iter = planes.entrySet()
+					.iterator();
+				while (bytes > maxBytes && planes.size() > 1) {
+					bytes -= sizeOf(iter.next().getValue());
+					iter.remove();
+				}
+			}
+			return pixels;
+		}
+
+		private static long sizeOf(Object pixels) {
+			if (pixels instanceof byte[]) return ((byte[]) pixels).length;
+			if (pixels instanceof short[]) return 2L * ((short[]) pixels).length;
+			return 4L * ((float[]) pixels).length;
+		}
+	}
+}
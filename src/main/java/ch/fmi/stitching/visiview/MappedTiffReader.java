@@ -0,0 +1,291 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching.visiview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.view.Views;
+
+/**
+ * Open uncompressed STK/TIFF files as memory-mapped images.
+ * <p>
+ * Plane offsets are taken from {@link TiffDecoder#getTiffInfo()}, and each
+ * plane is mapped read-only into memory. The resulting images access the file
+ * contents directly, without copying any pixels to the heap, so datasets larger
+ * than the available memory can be processed. Compressed or otherwise
+ * unsupported files are rejected with an {@link IOException}.
+ * </p>
+ */
+public class MappedTiffReader {
+
+	private MappedTiffReader() {
+		// prevent instantiation of static utility class
+	}
+
+	/**
+	 * Open the companion files of one stage position as a single memory-mapped
+	 * XYCZT hyperstack.
+	 *
+	 * @param fileList List of files (CT-ordered, as returned by
+	 *          {@link VisiviewUtils#getCompanionFiles})
+	 * @param nChannels Number of channels
+	 * @param nTimepoints Number of time points
+	 * @return Virtual hyperstack backed by the mapped files
+	 * @throws IOException if a file cannot be read or is not supported for
+	 *           mapping (e.g. compressed)
+	 */
+	public static ImagePlus openPositionStack(List<File> fileList, int nChannels,
+		int nTimepoints) throws IOException
+	{
+		if (fileList.size() != nChannels * nTimepoints) {
+			throw new IOException("Expected " + nChannels * nTimepoints +
+				" files, got " + fileList.size());
+		}
+		List<FileInfo[]> infoList = new ArrayList<>();
+		for (File file : fileList) {
+			infoList.add(readInfo(file));
+		}
+		switch (infoList.get(0)[0].fileType) {
+			case FileInfo.GRAY8:
+				return openPositionStack(fileList, infoList, nChannels, nTimepoints,
+					(buffer, w, h) -> ArrayImgs.unsignedBytes(new MappedByteAccess(
+						buffer), w, h));
+			case FileInfo.GRAY16_UNSIGNED:
+				return openPositionStack(fileList, infoList, nChannels, nTimepoints,
+					(buffer, w, h) -> ArrayImgs.unsignedShorts(new MappedShortAccess(
+						buffer.asShortBuffer()), w, h));
+			case FileInfo.GRAY32_FLOAT:
+				return openPositionStack(fileList, infoList, nChannels, nTimepoints,
+					(buffer, w, h) -> ArrayImgs.floats(new MappedFloatAccess(buffer
+						.asFloatBuffer()), w, h));
+			default:
+				throw new IOException("Unsupported pixel type in " + fileList.get(0));
+		}
+	}
+
+	/**
+	 * Map all planes of a single STK/TIFF file.
+	 *
+	 * @param file STK or TIFF file
+	 * @return List of read-only buffers, one per plane, in the byte order of the
+	 *         file
+	 * @throws IOException if the file cannot be read or is not supported for
+	 *           mapping
+	 */
+	public static List<ByteBuffer> mapPlanes(File file) throws IOException {
+		return mapPlanes(file, readInfo(file));
+	}
+
+	private static <T extends NumericType<T> & NativeType<T>> ImagePlus
+		openPositionStack(List<File> fileList, List<FileInfo[]> infoList,
+			int nChannels, int nTimepoints, PlaneFactory<T> factory)
+			throws IOException
+	{
+		FileInfo first = infoList.get(0)[0];
+		int nSlices = -1;
+		// planes per file, in CT order
+		List<List<RandomAccessibleInterval<T>>> filePlanes = new ArrayList<>();
+		for (int i = 0; i < fileList.size(); i++) {
+			FileInfo[] info = infoList.get(i);
+			if (info[0].fileType != first.fileType || info[0].width != first.width ||
+				info[0].height != first.height)
+			{
+				throw new IOException("Inconsistent plane layout in " + fileList.get(
+					i));
+			}
+			List<RandomAccessibleInterval<T>> planes = new ArrayList<>();
+			for (ByteBuffer buffer : mapPlanes(fileList.get(i), info)) {
+				planes.add(factory.create(buffer, first.width, first.height));
+			}
+			if (nSlices < 0) nSlices = planes.size();
+			if (planes.size() != nSlices) {
+				throw new IOException("Inconsistent number of slices in " + fileList
+					.get(i));
+			}
+			filePlanes.add(planes);
+		}
+
+		List<RandomAccessibleInterval<T>> frames = new ArrayList<>();
+		for (int t = 0; t < nTimepoints; t++) {
+			List<RandomAccessibleInterval<T>> slices = new ArrayList<>();
+			for (int z = 0; z < nSlices; z++) {
+				List<RandomAccessibleInterval<T>> channels = new ArrayList<>();
+				for (int c = 0; c < nChannels; c++) {
+					channels.add(filePlanes.get(t * nChannels + c).get(z));
+				}
+				slices.add(Views.stack(channels));
+			}
+			frames.add(Views.stack(slices));
+		}
+		ImagePlus imp = ImageJFunctions.wrap(Views.stack(frames), fileList.get(0)
+			.getName());
+		imp.setDimensions(nChannels, nSlices, nTimepoints);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	private static FileInfo[] readInfo(File file) throws IOException {
+		FileInfo[] info = new TiffDecoder(file.getParent(), file.getName())
+			.getTiffInfo();
+		if (info == null || info.length == 0) {
+			throw new IOException("Not a valid TIFF file: " + file);
+		}
+		return info;
+	}
+
+	private static List<ByteBuffer> mapPlanes(File file, FileInfo[] info)
+		throws IOException
+	{
+		List<ByteBuffer> planes = new ArrayList<>();
+		// NB: mapped buffers stay valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ))
+		{
+			for (FileInfo fi : info) {
+				checkMappable(file, fi);
+				long planeSize = (long) fi.width * fi.height * fi.getBytesPerPixel();
+				int nImages = Math.max(1, fi.nImages);
+				for (int i = 0; i < nImages; i++) {
+					long offset = fi.getOffset() + i * (planeSize + fi.gapBetweenImages);
+					if (offset + planeSize > channel.size()) {
+						throw new IOException("Plane " + i + " exceeds file size: " + file);
+					}
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						offset, planeSize);
+					buffer.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN
+						: ByteOrder.BIG_ENDIAN);
+					planes.add(buffer);
+				}
+			}
+		}
+		return planes;
+	}
+
+	private static void checkMappable(File file, FileInfo fi) throws IOException {
+		if (fi.compression > FileInfo.COMPRESSION_NONE) {
+			throw new IOException("Compressed TIFF cannot be mapped: " + file);
+		}
+		if (fi.fileType != FileInfo.GRAY8 &&
+			fi.fileType != FileInfo.GRAY16_UNSIGNED &&
+			fi.fileType != FileInfo.GRAY32_FLOAT)
+		{
+			throw new IOException("Unsupported pixel type in " + file);
+		}
+		// strips must be contiguous to be mapped as a single plane
+		if (fi.stripOffsets != null && fi.stripLengths != null) {
+			for (int s = 1; s < fi.stripOffsets.length; s++) {
+				if ((fi.stripOffsets[s] & 0xffffffffL) != (fi.stripOffsets[s - 1] &
+					0xffffffffL) + fi.stripLengths[s - 1])
+				{
+					throw new IOException("Non-contiguous strips cannot be mapped: " +
+						file);
+				}
+			}
+		}
+	}
+
+	private interface PlaneFactory<T> {
+
+		RandomAccessibleInterval<T> create(ByteBuffer buffer, long width,
+			long height);
+	}
+
+	private static class MappedByteAccess implements ByteAccess {
+
+		private final ByteBuffer buffer;
+
+		public MappedByteAccess(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public byte getValue(int index) {
+			return buffer.get(index);
+		}
+
+		@Override
+		public void setValue(int index, byte value) {
+			buffer.put(index, value);
+		}
+	}
+
+	private static class MappedShortAccess implements ShortAccess {
+
+		private final ShortBuffer buffer;
+
+		public MappedShortAccess(ShortBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public short getValue(int index) {
+			return buffer.get(index);
+		}
+
+		@Override
+		public void setValue(int index, short value) {
+			buffer.put(index, value);
+		}
+	}
+
+	private static class MappedFloatAccess implements FloatAccess {
+
+		private final FloatBuffer buffer;
+
+		public MappedFloatAccess(FloatBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public float getValue(int index) {
+			return buffer.get(index);
+		}
+
+		@Override
+		public void setValue(int index, float value) {
+			buffer.put(index, value);
+		}
+	}
+}
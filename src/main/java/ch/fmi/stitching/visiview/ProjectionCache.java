@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching.visiview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Persistent cache of per-tile projections.
+ * <p>
+ * Entries are keyed by the path, size and modification time of all files of
+ * a series (the dataset file as well as the files holding its pixels), the
+ * series index and the projection method, so they become invalid as soon as
+ * any of these files changes. Each entry is stored as a gzip-compressed file
+ * of raw pixels. When the total size of the cache exceeds its budget, the
+ * least recently used entries are deleted.
+ * </p>
+ */
+public class ProjectionCache {
+
+	/** Name of the cache directory created next to a dataset by default */
+	public static final String DEFAULT_DIRECTORY_NAME = ".projection-cache";
+
+	private static final String SUFFIX = ".proj.gz";
+	private static final int MAGIC = 0x464d4950; // "FMIP"
+	private static final int VERSION = 1;
+
+	private final File directory;
+	private final long maxBytes;
+	private long totalBytes = -1; // unknown until the directory was scanned
+
+	/**
+	 * @param directory Cache directory (created if necessary)
+	 * @param maxBytes Maximum total size of all entries
+	 */
+	public ProjectionCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param datasetFile Dataset file
+	 * @return Default cache directory, next to the dataset
+	 */
+	public static File defaultDirectory(File datasetFile) {
+		return new File(datasetFile.getAbsoluteFile().getParentFile(),
+			DEFAULT_DIRECTORY_NAME);
+	}
+
+	/**
+	 * @param sources Files of the series, e.g. from
+	 *          {@link VisiviewDataset#getSeriesUsedFiles}
+	 * @param series Series index
+	 * @param method Name of the projection method (e.g. "MAX")
+	 * @return Cached projection, or {@code null} if there is no valid entry
+	 */
+	public ImagePlus get(List<File> sources, int series, String method) {
+		File entry = entryFile(sources, series, method);
+		if (!entry.isFile()) return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new GZIPInputStream(new FileInputStream(entry)))))
+		{
+			ImagePlus imp = read(in);
+			entry.setLastModified(System.currentTimeMillis());
+			return imp;
+		}
+		catch (IOException exc) {
+			// corrupt or truncated entry: drop it and recompute
+			delete(entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Store a projection, and evict the least recently used entries if the
+	 * cache exceeds its budget.
+	 *
+	 * @param sources Files of the series, e.g. from
+	 *          {@link VisiviewDataset#getSeriesUsedFiles}
+	 * @param series Series index
+	 * @param method Name of the projection method (e.g. "MAX")
+	 * @param imp Projection
+	 * @throws IOException if the entry could not be written
+	 */
+	public void put(List<File> sources, int series, String method,
+		ImagePlus imp) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create cache directory " + directory);
+		}
+		File entry = entryFile(sources, series, method);
+		// write to a temporary file first, so readers never see partial entries
+		File tmp = File.createTempFile("projection", ".tmp", directory);
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(
+					tmp)))))
+			{
+				write(out, imp);
+			}
+			synchronized (this) {
+				long replaced = entry.length();
+				Files.move(tmp.toPath(), entry.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+				if (totalBytes >= 0) totalBytes += entry.length() - replaced;
+			}
+		}
+		finally {
+			tmp.delete();
+		}
+		evict();
+	}
+
+	/**
+	 * Delete the least recently used entries while the cache exceeds its
+	 * budget. The directory is only listed when the total size is not known
+	 * yet, or when entries need to be deleted.
+	 */
+	private synchronized void evict() {
+		if (totalBytes >= 0 && totalBytes <= maxBytes) return;
+		File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+		if (entries == null) return;
+		totalBytes = 0;
+		for (File f : entries) {
+			totalBytes += f.length();
+		}
+		if (totalBytes <= maxBytes) return;
+		Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+		for (File f : entries) {
+			if (totalBytes <= maxBytes) break;
+			long length = f.length();
+			if (f.delete()) totalBytes -= length;
+		}
+	}
+
+	private synchronized void delete(File entry) {
+		long length = entry.length();
+		if (entry.delete() && totalBytes >= 0) totalBytes -= length;
+	}
+
+	private File entryFile(List<File> sources, int series, String method) {
+		StringBuilder key = new StringBuilder();
+		for (File source : sources) {
+			File file = source.getAbsoluteFile();
+			key.append(file.getPath()).append('|').append(file.length()).append('|')
+				.append(file.lastModified()).append('|');
+		}
+		key.append(series).append('|').append(method);
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.toString()
+				.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(String.format("%02x", b));
+			}
+			return new File(directory, name + SUFFIX);
+		}
+		catch (NoSuchAlgorithmException exc) {
+			throw new RuntimeException(exc);
+		}
+	}
+
+	private static void write(DataOutputStream out, ImagePlus imp)
+		throws IOException
+	{
+		ImageStack stack = imp.getStack();
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(imp.getTitle());
+		out.writeInt(imp.getBitDepth());
+		out.writeInt(imp.getWidth());
+		out.writeInt(imp.getHeight());
+		out.writeInt(imp.getNChannels());
+		out.writeInt(imp.getNSlices());
+		out.writeInt(imp.getNFrames());
+		for (int i = 1; i <= stack.getSize(); i++) {
+			Object pixels = stack.getPixels(i);
+			if (pixels instanceof byte[]) {
+				out.write((byte[]) pixels);
+			}
+			else if (pixels instanceof short[]) {
+				for (short v : (short[]) pixels)
+					out.writeShort(v);
+			}
+			else if (pixels instanceof float[]) {
+				for (float v : (float[]) pixels)
+					out.writeFloat(v);
+			}
+			else {
+				throw new IOException("Unsupported pixel type: " + imp.getTitle());
+			}
+		}
+	}
+
+	private static ImagePlus read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a projection cache entry");
+		}
+		String title = in.readUTF();
+		int bitDepth = in.readInt();
+		int width = in.readInt();
+		int height = in.readInt();
+		int sizeC = in.readInt();
+		int sizeZ = in.readInt();
+		int sizeT = in.readInt();
+		int nPixels = width * height;
+		ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < sizeC * sizeZ * sizeT; i++) {
+			switch (bitDepth) {
+				case 8:
+					byte[] bytes = new byte[nPixels];
+					in.readFully(bytes);
+					stack.addSlice(null, bytes);
+					break;
+				case 16:
+					short[] shorts = new short[nPixels];
+					for (int j = 0; j < nPixels; j++)
+						shorts[j] = in.readShort();
+					stack.addSlice(null, shorts);
+					break;
+				case 32:
+					float[] floats = new float[nPixels];
+					for (int j = 0; j < nPixels; j++)
+						floats[j] = in.readFloat();
+					stack.addSlice(null, floats);
+					break;
+				default:
+					throw new IOException("Unsupported bit depth: " + bitDepth);
+			}
+		}
+		ImagePlus imp = new ImagePlus(title, stack);
+		imp.setDimensions(sizeC, sizeZ, sizeT);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+}
@@ -47,6 +47,7 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import ch.fmi.stitching.StitchingUtils;
+import ch.fmi.stitching.TilePipeline;
 import ij.ImagePlus;
 import mpicbg.models.InvertibleBoundable;
 
@@ -81,6 +82,15 @@ public class StitchBrokenDatasetCommand extends DynamicCommand {
 	@Parameter(label = "Channels (e.g. 2-4 or 1,4 - leave empty for all)", required = false)
 	private String channelSelection = "";
 
+	@Parameter(label = "Registration channel (0 = all selected channels)",
+		min = "0", required = false)
+	private int registrationChannel = 0;
+
+	@Parameter(label = "Number of parallel position readers", min = "1",
+		required = false)
+	private int nLoaderThreads = Math.min(4, Runtime.getRuntime()
+		.availableProcessors());
+
 	@Parameter(label = "Pixel spacing (x)", callback = "xSpacingChanged")
 	private Double xCal;
 
@@ -122,19 +132,58 @@ public class StitchBrokenDatasetCommand extends DynamicCommand {
 			logService.info("now stitching...");
 			logService.debug(stkFileList);
 
-			images = new ArrayList<>();
-			for (List<File> positionList : stkFileList) {
-				images.add(VisiviewUtils.loadPositionStack(positionList, nChannels, nFrames));
+			int[] channels;
+			try {
+				channels = VisiviewUtils.parseChannelSelection(channelSelection,
+					nChannels);
+			}
+			catch (IllegalArgumentException exc) {
+				logService.error(exc.getMessage());
+				return;
+			}
+
+			if (registrationChannel > nChannels) {
+				logService.error("Registration channel " + registrationChannel +
+					" exceeds the number of channels (" + nChannels + ")");
+				return;
+			}
+
+			ArrayList<ImagePlus> registrationTiles;
+			try {
+				images = TilePipeline.read(nLoaderThreads, i -> openPositionStack(
+					stkFileList.get(i), channels)).run(stkFileList.size());
+				// register on the registration channel only, read in addition
+				int[] registrationChannels = { registrationChannel - 1 };
+				registrationTiles = registrationChannel > 0 ? TilePipeline.read(
+					nLoaderThreads, i -> openPositionStack(stkFileList.get(i),
+						registrationChannels)).run(stkFileList.size()) : images;
+			}
+			catch (IOException exc) {
+				logService.error("Error reading file", exc);
+				return;
 			}
 
 			// TODO handle overlap computation via MIP
 			// TODO support output option MIP
-			ArrayList<InvertibleBoundable> models = StitchingUtils.computeStitching(images, pixelPositions, 3, !stitchingMode.equals(COMPUTE_NONE));
+			ArrayList<InvertibleBoundable> models = StitchingUtils.computeStitching(registrationTiles, pixelPositions, 3, !stitchingMode.equals(COMPUTE_NONE));
 			fused = StitchingUtils.fuseTiles(images, models, 3);
 			// TODO set output calibration and hyperstack dimensions
 		}
 	}
 
+	private ImagePlus openPositionStack(List<File> positionList, int[] channels) {
+		try {
+			return MappedTiffReader.openPositionStack(VisiviewUtils.selectChannels(
+				positionList, nChannels, channels), channels.length, nFrames);
+		}
+		catch (IOException exc) {
+			logService.debug("Cannot map " + positionList.get(0) +
+				", loading into memory instead", exc);
+			return VisiviewUtils.loadPositionStack(positionList, nChannels, nFrames,
+				channels);
+		}
+	}
+
 	@SuppressWarnings("unused")
 	private void ndFileChanged() {
 		ndFileChanged = true;
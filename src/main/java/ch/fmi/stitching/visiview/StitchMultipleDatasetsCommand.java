@@ -41,10 +41,10 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import ch.fmi.stitching.RegistrationEngine;
 import ch.fmi.stitching.StitchingUtils;
+import ch.fmi.stitching.TilePipeline;
 import ij.ImagePlus;
-import loci.formats.FormatException;
-import loci.plugins.BF;
 import mpicbg.models.InvertibleBoundable;
 
 @Plugin(type = Command.class, headless = true,
@@ -61,8 +61,17 @@ public class StitchMultipleDatasetsCommand extends DynamicCommand {
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
 	private String message = "Please select a file.";
 
-	@Parameter(label = "Save RAM at the cost of speed", required = false)
-	private boolean saveRAM = true;
+	@Parameter(label = "Number of registration threads (0 = all processors)",
+		min = "0", required = false)
+	private int nRegistrationThreads = 0;
+
+	@Parameter(label = "Registration memory limit (MB, 0 = half of the maximum memory)",
+		min = "0", required = false)
+	private int registrationMemoryMB = 0;
+
+	@Parameter(label = "Number of parallel readers", min = "1", required = false)
+	private int nLoaderThreads = Math.min(4, Runtime.getRuntime()
+		.availableProcessors());
 
 	@Parameter
 	private FilePatternService filePatternService;
@@ -82,29 +91,33 @@ public class StitchMultipleDatasetsCommand extends DynamicCommand {
 		int dimensionality = 2;
 		// open all images
 		try {
-			for (File file : fileList) {
-				ImagePlus[] imps = BF.openImagePlus(file.getAbsolutePath());
-				if (imps[0].getNSlices() > 1) dimensionality = 3;
-				imageList.add(imps[0]);
-			}
-		}
-		catch (FormatException exc) {
-			// TODO Auto-generated catch block
-			exc.printStackTrace();
+			imageList = TilePipeline.read(nLoaderThreads, i -> {
+				try (VisiviewDataset dataset = new VisiviewDataset(fileList.get(i))) {
+					return dataset.openSeries(0);
+				}
+			}).run(fileList.size());
 		}
 		catch (IOException exc) {
 			// TODO Auto-generated catch block
 			exc.printStackTrace();
 		}
+		for (ImagePlus imp : imageList) {
+			if (imp.getNSlices() > 1) dimensionality = 3;
+		}
 
 		// Compute stitching
 		float[] initialPosition = {0, 0, 0};
-		ArrayList<InvertibleBoundable> models = StitchingUtils.computeStitching(imageList, Collections.nCopies(imageList.size(), initialPosition), dimensionality, true, saveRAM);
+		ArrayList<InvertibleBoundable> models = StitchingUtils.computeStitching(imageList, Collections.nCopies(imageList.size(), initialPosition), dimensionality, true, 0, 1, StitchingUtils.DEFAULT_MIN_OVERLAP, registrationEngine());
 
 		// Fuse images
 		fused = StitchingUtils.fuseTiles(imageList, models, dimensionality);
 	}
 
+	private RegistrationEngine registrationEngine() {
+		return new RegistrationEngine(nRegistrationThreads, registrationMemoryMB *
+			1024L * 1024L, null, logService);
+	}
+
 	// -- Callback methods --
 
 	@SuppressWarnings("unused")
@@ -25,6 +25,7 @@ package ch.fmi.stitching.visiview;
 
 import static ch.fmi.stitching.visiview.UIConstants.COMPUTE_FULL;
 import static ch.fmi.stitching.visiview.UIConstants.COMPUTE_NONE;
+import static ch.fmi.stitching.visiview.UIConstants.COMPUTE_OVERLAP_REGIONS;
 import static ch.fmi.stitching.visiview.UIConstants.COMPUTE_VIA_MIP;
 import static ch.fmi.stitching.visiview.UIConstants.LAYOUT_HEIGHT;
 import static ch.fmi.stitching.visiview.UIConstants.LAYOUT_WIDTH;
@@ -35,13 +36,13 @@ import static ch.fmi.stitching.visiview.UIConstants.OUTPUT_TXT;
 import io.scif.SCIFIO;
 import io.scif.services.FormatService;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.scijava.ItemIO;
@@ -52,25 +53,18 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import ch.fmi.stitching.FlatFieldCorrection;
+import ch.fmi.stitching.PairCache;
+import ch.fmi.stitching.RegistrationEngine;
 import ch.fmi.stitching.StitchingUtils;
+import ch.fmi.stitching.TilePipeline;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.measure.Calibration;
-import ij.plugin.ChannelSplitter;
-import ij.plugin.Duplicator;
-import ij.plugin.ImageCalculator;
-import ij.plugin.RGBStackMerge;
 import ij.plugin.ZProjector;
 import ij.process.ImageConverter;
-import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import loci.formats.FormatException;
-import loci.formats.ImageReader;
-import loci.formats.MetadataTools;
 import loci.formats.meta.IMetadata;
-import loci.plugins.BF;
-import loci.plugins.in.ImporterOptions;
 import mpicbg.models.InvertibleBoundable;
 
 @Plugin(type = Command.class, headless = true,
@@ -81,6 +75,7 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 	public enum IlluminationCorrectionMethod {
 		NONE,
 		FROM_FILE,
+		FROM_PROFILE_STORE,
 	}
 
 	@Parameter(label = "Input dataset file (nd)", style = "extensions:nd",
@@ -100,15 +95,67 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 	private String stgMessage = " ";
 
 	@Parameter(label = "Overlap computation mode", style = "radioButtonVertical", //
-		choices = { COMPUTE_NONE, COMPUTE_VIA_MIP, COMPUTE_FULL }, required = false)
+		choices = { COMPUTE_NONE, COMPUTE_VIA_MIP, COMPUTE_FULL, COMPUTE_OVERLAP_REGIONS }, required = false)
 	private String stitchingMode = COMPUTE_NONE;
 
+	@Parameter(label = "Registration channel (0 = all channels)", min = "0", required = false)
+	private int registrationChannel = 0;
+
+	@Parameter(label = "Registration binning (1 = full resolution only)", choices = { "1", "2", "4", "8" }, required = false)
+	private String registrationBinning = "1";
+
+	@Parameter(label = "Minimum tile overlap (%)", min = "0", max = "100", required = false)
+	private double minOverlap = 100 * StitchingUtils.DEFAULT_MIN_OVERLAP;
+
 	@Parameter(label = "Output", style = "radioButtonVertical", //
 		choices = { OUTPUT_TXT, OUTPUT_MIP, OUTPUT_FULL }, required = false)
 	private String outputMode = OUTPUT_FULL;
 
-	@Parameter(label = "Save RAM at the cost of speed", required = false)
-	private boolean saveRAM = false;
+	@Parameter(label = "Number of registration threads (0 = all processors)", min = "0", required = false)
+	private int nRegistrationThreads = 0;
+
+	@Parameter(label = "Registration memory limit (MB, 0 = half of the maximum memory)", min = "0", required = false)
+	private int registrationMemoryMB = 0;
+
+	@Parameter(label = "Number of parallel series readers", min = "1",
+		required = false)
+	private int nLoaderThreads = Math.min(4, Runtime.getRuntime()
+		.availableProcessors());
+
+	@Parameter(label = "Number of parallel correction threads", min = "1",
+		required = false)
+	private int nCorrectionThreads = 1;
+
+	@Parameter(label = "Stream time points (fuse and save one time point at a time)", required = false)
+	private boolean streamTimepoints = false;
+
+	@Parameter(label = "Registration time point", min = "1", required = false)
+	private int referenceTimepoint = 1;
+
+	@Parameter(label = "Re-register every n time points (0 = never)", min = "0", required = false)
+	private int reregistrationInterval = 0;
+
+	@Parameter(label = "Output folder for streamed time points", style = "directory", required = false)
+	private File timepointOutputFolder;
+
+	@Parameter(label = "Cache projections on disk", required = false)
+	private boolean useProjectionCache = false;
+
+	@Parameter(label = "Projection cache folder (empty = next to dataset)", style = "directory", required = false)
+	private File projectionCacheFolder;
+
+	@Parameter(label = "Projection cache size (MB)", min = "1", required = false)
+	private long projectionCacheSize = 2048;
+
+	@Parameter(label = "Cache pairwise registration results on disk", required = false)
+	private boolean usePairCache = false;
+
+	@Parameter(label = "Pair cache folder (empty = default)", style = "directory", required = false)
+	private File pairCacheFolder;
+
+	@Parameter(label = "Tile cache size (MB)", min = "1", required = false)
+	private long tileCacheSize = Runtime.getRuntime().maxMemory() / 4 / 1024 /
+		1024;
 
 	@Parameter(label = "Override calibration metadata with provided values",
 		required = false)
@@ -123,6 +170,18 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 	@Parameter(label = "Dark field reference", style = "extensions:tif/tiff", required = false)
 	private File darkReference;
 
+	@Parameter(label = "Save references as illumination profiles", required = false)
+	private boolean saveIlluminationProfiles = false;
+
+	@Parameter(label = "Illumination profile folder (empty = default)", style = "directory", required = false)
+	private File profileStoreFolder;
+
+	@Parameter(label = "Scale corrected intensities by", required = false)
+	private double correctionScale = 1.0;
+
+	@Parameter(label = "Convert corrected tiles to 32-bit", required = false)
+	private boolean correctToFloat = false;
+
 	@Parameter(label = "Pixel spacing (x)", callback = "xSpacingChanged")
 	private Double xCal;
 
@@ -160,8 +219,9 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 	private ArrayList<ImagePlus> images; // ArrayList required by stitching API
 	private ArrayList<InvertibleBoundable> models;
 
-	private ImagePlus normalizedReferenceImage;
-	private ImagePlus darkImage;
+	private FlatFieldCorrection flatFieldCorrection;
+
+	private VisiviewDataset dataset;
 
 	private boolean stgRequired;
 
@@ -172,6 +232,15 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 
 	@Override
 	public void run() {
+		try {
+			stitchDataset();
+		}
+		finally {
+			closeDataset();
+		}
+	}
+
+	private void stitchDataset() {
 		logService.debug("Now running...");
 
 		// Ensure valid input parameters
@@ -183,12 +252,37 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 		}
 
 		// Prepare illumination correction if applicable
-		if (illuminationCorrection == IlluminationCorrectionMethod.FROM_FILE) {
-			normalizedReferenceImage = loadReferenceImage(illuminationReference);
-			darkImage = loadDarkImage(darkReference);
+		try {
+			boolean fromStore = illuminationCorrection == IlluminationCorrectionMethod.FROM_PROFILE_STORE;
+			if (fromStore) flatFieldCorrection = loadIlluminationProfiles();
+			if (flatFieldCorrection == null && (fromStore || illuminationCorrection == IlluminationCorrectionMethod.FROM_FILE)) {
+				ImagePlus inverseFlatField = loadReferenceImage(illuminationReference);
+				if (inverseFlatField != null) {
+					ImagePlus darkField = loadDarkImage(darkReference);
+					flatFieldCorrection = new FlatFieldCorrection(inverseFlatField, darkField, (int) nChannels, (float) correctionScale, correctToFloat);
+					// preprocess the references once and store them for the next datasets
+					if (fromStore || saveIlluminationProfiles) saveIlluminationProfiles(inverseFlatField, darkField);
+				} else if (fromStore) {
+					logService.error("Please provide an illumination field reference for datasets without stored illumination profiles.");
+					return;
+				}
+			}
+		}
+		catch (FormatException exc) {
+			logService.error("Error performing a file format operation", exc);
+			return;
+		}
+		catch (IOException exc) {
+			logService.error("Error reading or writing illumination profiles", exc);
+			return;
 		}
 
 		// Start stitching process
+		if (registrationChannel > nChannels) {
+			logService.error("Registration channel " + registrationChannel + " exceeds the number of channels (" + nChannels + ")");
+			return;
+		}
+
 		if (pixelPositions.size() > 0) {
 			logService.error("Now stitching with defined positions");
 
@@ -198,15 +292,11 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 				// get single stack, split into ImageCollectionElements, stitch online
 				// parameters: imp(Stack), positions
 				try {
-					ImagePlus[] imps = BF.openImagePlus(ndFile.getAbsolutePath());
+					ImagePlus imp = openDataset().openSeries(0);
 
-					Duplicator d = new Duplicator();
-
-					images = new ArrayList<>();
-					for (int i = 0; i < imps[0].getNSlices(); i++) {
-						images.add(d.run(imps[0], 1, imps[0].getNChannels(), i+1, i+1, 1, imps[0].getNFrames()));
-					}
-					images = applyIlluminationCorrection(images, normalizedReferenceImage, darkImage);
+					// tiles reference the planes of the loaded stack, without copying
+					images = VisiviewUtils.splitSlices(imp);
+					applyIlluminationCorrection(images);
 
 				}
 				catch (FormatException exc) {
@@ -218,11 +308,11 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 					return;
 				}
 
-				models = StitchingUtils.computeStitching(images, pixelPositions, 2, !stitchingMode.equals(COMPUTE_NONE), saveRAM);
+				models = StitchingUtils.computeStitching(images, pixelPositions, 2, !stitchingMode.equals(COMPUTE_NONE), registrationChannel, Integer.parseInt(registrationBinning), minOverlap / 100, registrationEngine());
 
 				fused = StitchingUtils.fuseTiles(images, models, 2);
 
-				//fused.setTitle(imps[0].getTitle() + "_fused");
+				//fused.setTitle(imp.getTitle() + "_fused");
 				fused.setTitle("Fused");
 				Calibration cal = new Calibration();
 				cal.pixelWidth = xCal;
@@ -236,19 +326,13 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 				// parameters imp[], positions
 				logService.error("Stitching MIPs");
 
-				// read each series, create MIP, add to list
+				// project series while reading, correct concurrently, keep them in series order
 				try {
-					images = new ArrayList<>();
-
-					ImporterOptions options = new ImporterOptions();
-					options.setOpenAllSeries(false);
-					options.setId(ndFile.getAbsolutePath());
-					options.setSeriesOn(0, true);
-					for (int i = 0; i < nSeries; i++) {
-						images.add(createMIP(BF.openImagePlus(options)[0]));
-						options.setSeriesOn(i, false);
-						options.setSeriesOn(i + 1, true);
-					}
+					VisiviewDataset session = openDataset();
+					ProjectionCache projectionCache = useProjectionCache ? new ProjectionCache(projectionCacheFolder != null ? projectionCacheFolder : ProjectionCache.defaultDirectory(ndFile), projectionCacheSize * 1024 * 1024) : null;
+					images = TilePipeline.read(nLoaderThreads, i -> loadMIP(session, i, projectionCache)) //
+						.then(nCorrectionThreads, mip -> correctIllumination(mip, 1)) //
+						.run(nSeries);
 				}
 				catch (IOException exc) {
 					logService.error("Error reading file", exc);
@@ -259,9 +343,7 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 					return;
 				}
 
-				images = applyIlluminationCorrection(images, normalizedReferenceImage, darkImage);
-
-				models = StitchingUtils.computeStitching(images, pixelPositions, 2, stitchingMode.equals(COMPUTE_NONE) ? false : true, saveRAM);
+				models = StitchingUtils.computeStitching(images, pixelPositions, 2, stitchingMode.equals(COMPUTE_NONE) ? false : true, registrationChannel, Integer.parseInt(registrationBinning), minOverlap / 100, registrationEngine());
 
 				// case: via MIP: go on with full dataset
 				// load all full series into imps[]
@@ -276,17 +358,15 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 
 				// stitchClassical(tileConfigPath);
 				try {
-					// load all series into imps[]
-					ImporterOptions options = new ImporterOptions();
-					options.setOpenAllSeries(true);
-					options.setId(ndFile.getAbsolutePath());
-					ImagePlus[] imps = BF.openImagePlus(options);
-
-					images = new ArrayList<>();
-					images.addAll(Arrays.asList(imps));
-					images = applyIlluminationCorrection(images, normalizedReferenceImage, darkImage);
+					// open all series as tiles that load their planes on demand
+					LazyTileLoader loader = new LazyTileLoader(openDataset(), tileCacheSize * 1024 * 1024);
+					if (streamTimepoints && nTimepoints > 1) {
+						stitchTimepoints(loader);
+						return;
+					}
+					images = correctedViews(loader.openTiles(nSeries));
 					// computeStitching
-					models = StitchingUtils.computeStitching(images, pixelPositions, is2D ? 2 : 3, stitchingMode.equals(COMPUTE_NONE) ? false : true, saveRAM);
+					models = registerTiles(loader, LazyTileLoader.ALL_FRAMES);
 					// fuseTiles
 					fused = StitchingUtils.fuseTiles(images, models, is2D ? 2 : 3);
 				} catch (FormatException exc) {
@@ -334,45 +414,197 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 
 	}
 
-	private ArrayList<ImagePlus> applyIlluminationCorrection(ArrayList<ImagePlus> imps,
-			ImagePlus reference, ImagePlus darkFieldReference) {
-		if (reference == null) return imps;
-		if (reference.getNChannels() > 1 && reference.getNChannels() != imps.get(0).getNChannels()) {
-			throw new IllegalArgumentException("The number of channels of the reference must be equal to the number of channels in the tiles, or 1.");
+	/**
+	 * Correct the illumination of tiles in place, correcting the planes of
+	 * each tile in parallel.
+	 */
+	private void applyIlluminationCorrection(ArrayList<ImagePlus> imps) throws IOException {
+		for (ImagePlus imp : imps) {
+			correctIllumination(imp, nCorrectionThreads);
+		}
+	}
+
+	/**
+	 * Wrap lazily loaded tiles in illumination-corrected views, so that the
+	 * correction is applied while registration and fusion read the tiles.
+	 */
+	private ArrayList<ImagePlus> correctedViews(ArrayList<ImagePlus> imps) {
+		if (flatFieldCorrection == null) return imps;
+		ArrayList<ImagePlus> views = new ArrayList<>();
+		for (ImagePlus imp : imps) {
+			views.add(flatFieldCorrection.view(imp));
+		}
+		return views;
+	}
+
+	/**
+	 * Register, fuse and save one time point at a time, so that only the planes
+	 * of a single time point need to be held in memory. The fused time points
+	 * are only written to the output folder; no fused image is returned.
+	 */
+	private void stitchTimepoints(LazyTileLoader loader) throws FormatException, IOException {
+		if (timepointOutputFolder == null || !timepointOutputFolder.isDirectory()) {
+			logService.error("Please provide an output folder for streamed time points.");
+			return;
 		}
-		if (darkFieldReference != null && darkFieldReference.getNChannels() > 1 && darkFieldReference.getNChannels() != imps.get(0).getNChannels()) {
-			throw new IllegalArgumentException("The number of channels of the dark field reference must be equal to the number of channels in the tiles, or 1.");
+		if (referenceTimepoint > nTimepoints) {
+			logService.error("Registration time point " + referenceTimepoint + " exceeds the number of time points (" + nTimepoints + ")");
+			return;
 		}
-		ImagePlus[] refChannels = ChannelSplitter.split(reference);
-		ImagePlus[] darkChannels = null;
-		if (darkFieldReference != null) {
-			darkChannels = ChannelSplitter.split(darkFieldReference);
+		String prefix = ndFile.getName().substring(0, ndFile.getName().lastIndexOf("."));
+		Calibration cal = new Calibration();
+		cal.pixelWidth = xCal;
+		cal.pixelHeight = yCal;
+		cal.pixelDepth = zCal;
+
+		models = registerTimepoint(loader, referenceTimepoint - 1);
+		for (int t = 0; t < nTimepoints; t++) {
+			if (reregistrationInterval > 0 && t > 0 && t % reregistrationInterval == 0) {
+				models = registerTimepoint(loader, t);
+			}
+			ArrayList<ImagePlus> tiles = correctedViews(loader.openTiles(nSeries, LazyTileLoader.ALL_CHANNELS, t));
+			ImagePlus frame = StitchingUtils.fuseTiles(tiles, models, is2D ? 2 : 3);
+			frame.setTitle(String.format("%s_t%04d", prefix, t + 1));
+			frame.setCalibration(cal);
+			IJ.saveAsTiff(frame, new File(timepointOutputFolder, frame.getTitle() + ".tif").getAbsolutePath());
+			frame.close();
+			logService.info("Saved time point " + (t + 1) + "/" + nTimepoints);
 		}
-		for (ImagePlus imp : imps) {
-			new ImageConverter(imp).convertToGray32();
-			ImagePlus[] channels = ChannelSplitter.split(imp);
-			for (int i=0; i<channels.length; i++) {
-				if (darkFieldReference != null) {
-					ImageCalculator.run(channels[i], darkChannels[darkChannels.length > 1 ? i : 0], "Subtract stack");
+		logService.info("Fused time points were saved to " + timepointOutputFolder + " (no fused image is returned when streaming)");
+	}
+
+	private ArrayList<InvertibleBoundable> registerTimepoint(LazyTileLoader loader, int t) throws FormatException, IOException {
+		logService.info("Registering time point " + (t + 1));
+		return registerTiles(loader, t);
+	}
+
+	/**
+	 * Register the lazily loaded tiles of the full dataset, reading only the
+	 * overlap regions or the registration channel if selected.
+	 * 
+	 * @param frame Frame index (0-based), or {@link LazyTileLoader#ALL_FRAMES}
+	 */
+	private ArrayList<InvertibleBoundable> registerTiles(LazyTileLoader loader, int frame) throws FormatException, IOException {
+		ArrayList<ImagePlus> registrationTiles;
+		if (stitchingMode.equals(COMPUTE_OVERLAP_REGIONS)) {
+			// register on tiles that only read the regions overlapping with their neighbors
+			List<List<Rectangle>> regions = StitchingUtils.overlapRegions(pixelPositions, (int) xSize, (int) ySize);
+			// share the plane cache, so both loaders stay within the tile cache size
+			registrationTiles = openRegistrationTiles(new LazyTileLoader(openDataset(), loader.getCache(), regions), frame, regions);
+		} else {
+			// if a registration channel is selected, only this channel is read before fusion
+			registrationTiles = openRegistrationTiles(loader, frame, null);
+		}
+		return StitchingUtils.computeStitching(registrationTiles, pixelPositions, is2D ? 2 : 3, !stitchingMode.equals(COMPUTE_NONE), 0, Integer.parseInt(registrationBinning), minOverlap / 100, registrationEngine());
+	}
+
+	/**
+	 * Get the maximum projection of a series from the projection cache, or
+	 * compute (and cache) it if there is no valid entry.
+	 */
+	private ImagePlus loadMIP(VisiviewDataset session, int series, ProjectionCache cache) throws FormatException, IOException {
+		List<File> sources = cache != null ? session.getSeriesUsedFiles(series) : null;
+		if (cache != null) {
+			ImagePlus mip = cache.get(sources, series, "MAX");
+			if (mip != null) return mip;
+		}
+		ImagePlus mip = StreamingProjector.project(session, series, ZProjector.MAX_METHOD, false, null);
+		if (cache != null) {
+			try {
+				cache.put(sources, series, "MAX", mip);
+			}
+			catch (IOException exc) {
+				logService.warn("Could not cache projection of series " + series, exc);
+			}
+		}
+		return mip;
+	}
+
+	/**
+	 * Open the tiles to register, wrapped in illumination-corrected views like
+	 * the tiles that are fused. Uncorrected tiles are identified by their files
+	 * in the pair cache, so that their pixels are not read for the fingerprint.
+	 * 
+	 * @param regions Regions read by the loader, or {@code null} if it reads
+	 *          complete planes
+	 */
+	private ArrayList<ImagePlus> openRegistrationTiles(LazyTileLoader loader, int frame, List<List<Rectangle>> regions) throws FormatException, IOException {
+		int channel = registrationChannel > 0 ? registrationChannel - 1 : LazyTileLoader.ALL_CHANNELS;
+		ArrayList<ImagePlus> tiles = loader.openTiles(nSeries, channel, frame);
+		if (flatFieldCorrection == null) {
+			if (usePairCache) {
+				VisiviewDataset session = openDataset();
+				for (int i = 0; i < tiles.size(); i++) {
+					String details = "series=" + i + "|frame=" + frame + "|channel=" + channel + "|regions=" + (regions == null ? "all" : regions.get(i));
+					tiles.get(i).setProperty(PairCache.SOURCE_PROPERTY, PairCache.source(session.getSeriesUsedFiles(i), details));
 				}
-				ImageCalculator.run(channels[i], refChannels[refChannels.length > 1 ? i : 0], "Divide stack"); 
 			}
-			imp = RGBStackMerge.mergeChannels(channels, false);
+			return tiles;
+		}
+		ArrayList<ImagePlus> views = new ArrayList<>();
+		for (int i = 0; i < tiles.size(); i++) {
+			views.add(flatFieldCorrection.view(tiles.get(i), Math.max(0, channel), regions == null ? null : regions.get(i)));
+		}
+		return views;
+	}
+
+	private ImagePlus correctIllumination(ImagePlus imp, int nThreads) throws IOException {
+		if (flatFieldCorrection != null) flatFieldCorrection.apply(imp, nThreads);
+		return imp;
+	}
+
+	private RegistrationEngine registrationEngine() {
+		PairCache pairCache = usePairCache ? new PairCache(pairCacheFolder != null ? pairCacheFolder : PairCache.defaultDirectory()) : null;
+		return new RegistrationEngine(nRegistrationThreads, registrationMemoryMB * 1024L * 1024L, pairCache, logService);
+	}
+
+	private IlluminationProfileStore profileStore() {
+		return new IlluminationProfileStore(profileStoreFolder != null ? profileStoreFolder : IlluminationProfileStore.defaultDirectory());
+	}
+
+	/**
+	 * Get the illumination profiles matching the channels, objective, binning
+	 * and size of the dataset from the profile store.
+	 * 
+	 * @return Correction using the stored profiles, or {@code null} if there are
+	 *         no matching flat-field profiles
+	 */
+	private FlatFieldCorrection loadIlluminationProfiles() throws FormatException, IOException {
+		IlluminationProfileStore store = profileStore();
+		IMetadata meta = openDataset().getMetadata();
+		if (!IlluminationProfileStore.hasCompleteKeys(meta, 0, (int) nChannels)) {
+			logService.warn("Channel, objective or binning metadata is missing (" + IlluminationProfileStore.key(meta, 0, 0, (int) xSize, (int) ySize) + "), stored illumination profiles are not used.");
+			return null;
+		}
+		float[][] inverseFlat = store.get(meta, 0, (int) nChannels, IlluminationProfileStore.FLAT, (int) xSize, (int) ySize);
+		if (inverseFlat == null) {
+			logService.info("No stored illumination profiles for " + IlluminationProfileStore.key(meta, 0, 0, (int) xSize, (int) ySize) + " in " + (profileStoreFolder != null ? profileStoreFolder : IlluminationProfileStore.defaultDirectory()));
+			return null;
 		}
-		return imps;
+		float[][] dark = store.get(meta, 0, (int) nChannels, IlluminationProfileStore.DARK, (int) xSize, (int) ySize);
+		return new FlatFieldCorrection((int) xSize, (int) ySize, inverseFlat, dark, (float) correctionScale, correctToFloat);
+	}
+
+	private void saveIlluminationProfiles(ImagePlus inverseFlatField, ImagePlus darkField) throws FormatException, IOException {
+		IlluminationProfileStore store = profileStore();
+		IMetadata meta = openDataset().getMetadata();
+		if (!IlluminationProfileStore.hasCompleteKeys(meta, 0, (int) nChannels)) {
+			logService.warn("Channel, objective or binning metadata is missing (" + IlluminationProfileStore.key(meta, 0, 0, (int) xSize, (int) ySize) + "), illumination profiles are not saved.");
+			return;
+		}
+		store.put(meta, 0, IlluminationProfileStore.FLAT, (int) xSize, (int) ySize, FlatFieldCorrection.channelPlanes(inverseFlatField, (int) nChannels));
+		if (darkField != null) {
+			store.put(meta, 0, IlluminationProfileStore.DARK, (int) xSize, (int) ySize, FlatFieldCorrection.channelPlanes(darkField, (int) nChannels));
+		}
+		logService.info("Saved illumination profiles for " + IlluminationProfileStore.key(meta, 0, 0, (int) xSize, (int) ySize));
 	}
 
 	private ImagePlus loadReferenceImage(File referenceFile) {
 		if (referenceFile == null) return null;
 		ImagePlus imp = IJ.openImage(referenceFile.getAbsolutePath());
-		// ensure 32-bit and normalize to [0;1]
+		// ensure 32-bit, normalize to [0;1] and invert once, so tiles only need to be multiplied
 		new ImageConverter(imp).convertToGray32();
-		ImageStack stack = imp.getStack();
-		for (int i=1; i<=imp.getStackSize(); i++) {
-			ImageProcessor ip = stack.getProcessor(i);
-			ImageStatistics stats = ip.getStats();
-			ip.multiply(1.0/stats.max);
-		}
+		FlatFieldCorrection.invert(imp);
 		return imp;
 	}
 
@@ -384,15 +616,6 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 		return imp;
 	}
 
-	private ImagePlus createMIP(ImagePlus imp) {
-		ZProjector zp = new ZProjector(imp);
-		zp.setMethod(ZProjector.MAX_METHOD);
-		zp.setStopSlice(imp.getNSlices());
-		zp.doHyperStackProjection(false);
-		imp.close();
-		return zp.getProjection();
-	}
-
 	@SuppressWarnings("unused")
 	private void initializeDialog() {
 		layout = new BufferedImage(LAYOUT_WIDTH, LAYOUT_HEIGHT,
@@ -461,18 +684,19 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 		ndMessage = "parsing nd file..."; // TODO update dialog on separate thread?
 		// TODO use scifio.initialize() and scifio.translate() with OMEMetadata here to get series names
 
-		IMetadata omeMeta = MetadataTools.createOMEXMLMetadata();
-		try (ImageReader reader = new ImageReader()) {
-			reader.setMetadataStore(omeMeta);
-			reader.setId(ndFile.getAbsolutePath());
+		IMetadata omeMeta;
+		try {
+			omeMeta = openDataset().getMetadata();
 		}
 		catch (FormatException exc) {
 			logService.debug("No compatible format", exc);
 			ndMessage = "No compatible format";
+			return;
 		}
 		catch (IOException exc) {
 			logService.debug("Error parsing nd file", exc);
 			ndMessage = "Error parsing nd file";
+			return;
 		}
 		nSeries = omeMeta.getImageCount();
 		xSize = omeMeta.getPixelsSizeX(0).getValue();
@@ -590,6 +814,29 @@ public class StitchVisiviewDatasetCommand extends DynamicCommand {
 		*/
 	}
 
+	/**
+	 * Get the session on the current nd file, re-opening it only if the file
+	 * has changed.
+	 */
+	private VisiviewDataset openDataset() throws FormatException, IOException {
+		if (dataset == null || !dataset.isCurrent(ndFile)) {
+			closeDataset();
+			dataset = new VisiviewDataset(ndFile);
+		}
+		return dataset;
+	}
+
+	private void closeDataset() {
+		if (dataset == null) return;
+		try {
+			dataset.close();
+		}
+		catch (IOException exc) {
+			logService.debug("Error closing dataset", exc);
+		}
+		dataset = null;
+	}
+
 	private void updateStgFileInfo() {
 		try {
 			pixelPositions = VisiviewUtils.positionsFromStgFile(stgFile, xCal, yCal);
@@ -23,35 +23,23 @@
 
 package ch.fmi.stitching.visiview;
 
+import ch.fmi.stitching.FlatFieldCorrection;
+import ch.fmi.stitching.FlatFieldEstimator;
+import ch.fmi.stitching.GaussianIlluminationField;
+import ch.fmi.stitching.RegistrationEngine;
 import ch.fmi.stitching.StitchingUtils;
+import ch.fmi.stitching.TilePipeline;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.measure.Calibration;
-import ij.plugin.Duplicator;
 import ij.plugin.ZProjector;
+import ij.process.FloatProcessor;
 import io.scif.SCIFIO;
 import io.scif.services.FormatService;
 import loci.formats.FormatException;
-import loci.formats.ImageReader;
-import loci.formats.MetadataTools;
+import loci.formats.FormatTools;
 import loci.formats.meta.IMetadata;
-import loci.plugins.BF;
-import loci.plugins.in.ImporterOptions;
 import mpicbg.models.InvertibleBoundable;
-import net.imagej.ImgPlus;
-import net.imglib2.Localizable;
-import net.imglib2.Point;
-import net.imglib2.algorithm.localization.*;
-import net.imglib2.algorithm.stats.ComputeMinMax;
-import net.imglib2.img.ImagePlusAdapter;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.loops.LoopBuilder;
-import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
-import org.jetbrains.annotations.Nullable;
 import org.scijava.ItemIO;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
@@ -66,7 +54,6 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static ch.fmi.stitching.visiview.UIConstants.*;
@@ -102,15 +89,45 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 		choices = { OUTPUT_TXT, OUTPUT_MIP }, required = false)
 	private String outputMode = OUTPUT_MIP;
 
-	@Parameter(label = "Save RAM at the cost of speed", required = false)
-	private boolean saveRAM = false;
+	@Parameter(label = "Number of registration threads (0 = all processors)",
+		min = "0", required = false)
+	private int nRegistrationThreads = 0;
+
+	@Parameter(label = "Registration memory limit (MB, 0 = half of the maximum memory)",
+		min = "0", required = false)
+	private int registrationMemoryMB = 0;
+
+	@Parameter(label = "Number of parallel series readers", min = "1",
+		required = false)
+	private int nLoaderThreads = Math.min(4, Runtime.getRuntime()
+		.availableProcessors());
+
+	@Parameter(label = "Tile cache size (MB)", min = "1", required = false)
+	private long tileCacheSize = Runtime.getRuntime().maxMemory() / 4 / 1024 /
+		1024;
 
 	@Parameter(label = "Override calibration metadata with provided values",
 		required = false)
 	private Boolean doOverrideCalibration = false;
 
-	@Parameter(label = "DAPI channel")
-	private Integer dapiChannelIndex = 3;
+	@Parameter(label = "Flat-field percentile (0 = mean of all tiles)",
+		min = "0", max = "100", required = false)
+	private double flatFieldPercentile = 0;
+
+	@Parameter(label = "Reuse and save illumination profiles", required = false)
+	private boolean useIlluminationProfiles = false;
+
+	@Parameter(label = "Illumination profile folder (empty = default)",
+		style = "directory", required = false)
+	private File profileStoreFolder;
+
+	@Parameter(label = "Registration channel (0 = all channels)", min = "0",
+		required = false)
+	private int registrationChannel = 0;
+
+	@Parameter(label = "Registration binning (1 = full resolution only)",
+		choices = { "1", "2", "4", "8" }, required = false)
+	private String registrationBinning = "1";
 
 	@Parameter(label = "Pixel spacing (x)", callback = "xSpacingChanged")
 	private Double xCal;
@@ -150,9 +167,11 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 	private List<float[]> pixelPositions; // holds the pixel-based positions
 	private List<String> positionNames;
 	private ArrayList<ImagePlus> images; // ArrayList required by stitching API
-	private IntervalView<FloatType> illumination_img;
+	private FlatFieldEstimator flatFieldEstimator;
 	private ArrayList<InvertibleBoundable> models;
 
+	private VisiviewDataset dataset;
+
 	private boolean stgRequired;
 
 	private boolean ndFileChanged = false;
@@ -162,6 +181,15 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 
 	@Override
 	public void run() {
+		try {
+			stitchDataset();
+		}
+		finally {
+			closeDataset();
+		}
+	}
+
+	private void stitchDataset() {
 		logService.debug("Now running...");
 
 		// Ensure valid input parameters
@@ -174,6 +202,12 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 		}
 
 		// Start stitching process
+		if (registrationChannel > nChannels) {
+			logService.error("Registration channel " + registrationChannel +
+				" exceeds the number of channels (" + nChannels + ")");
+			return;
+		}
+
 		if (pixelPositions.size() > 0) {
 			logService.error("Now stitching with defined positions");
 
@@ -183,15 +217,10 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 				// get single stack, split into ImageCollectionElements, stitch online
 				// parameters: imp(Stack), positions
 				try {
-					ImagePlus[] imps = BF.openImagePlus(ndFile.getAbsolutePath());
-
-					Duplicator d = new Duplicator();
+					ImagePlus imp = openDataset().openSeries(0);
 
-					images = new ArrayList<>();
-					for (int i = 0; i < imps[0].getNSlices(); i++) {
-						images.add(d.run(imps[0], 1, imps[0].getNChannels(), i + 1, i + 1,
-							1, imps[0].getNFrames()));
-					}
+					// tiles reference the planes of the loaded stack, without copying
+					images = VisiviewUtils.splitSlices(imp);
 
 				}
 				catch (FormatException exc) {
@@ -204,11 +233,13 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 				}
 
 				models = StitchingUtils.computeStitching(images, pixelPositions, 2,
-					!stitchingMode.equals(COMPUTE_NONE), saveRAM);
+					!stitchingMode.equals(COMPUTE_NONE), registrationChannel, Integer
+						.parseInt(registrationBinning), StitchingUtils.DEFAULT_MIN_OVERLAP,
+					registrationEngine());
 
 				fused = StitchingUtils.fuseTiles(images, models, 2);
 
-				// fused.setTitle(imps[0].getTitle() + "_fused");
+				// fused.setTitle(imp.getTitle() + "_fused");
 				fused.setTitle("Fused");
 				Calibration cal = new Calibration();
 				cal.pixelWidth = xCal;
@@ -225,30 +256,42 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 				// parameters imp[], positions
 				logService.info("Loading tiles and computing MIPs...");
 
-				// read each series, create MIP, add to list
+				// project series while reading, keep them in series order
+				IlluminationProfileStore store = new IlluminationProfileStore(
+					profileStoreFolder != null ? profileStoreFolder
+						: IlluminationProfileStore.defaultDirectory());
+				float[][] storedProfiles = null;
 				try {
-					images = new ArrayList<>();
-
-					ImporterOptions options = new ImporterOptions();
-					options.setOpenAllSeries(false);
-					options.setId(ndFile.getAbsolutePath());
-					options.setSeriesOn(0, true);
-
-					for (int i = 0; i < nSeries; i++) {
-						ImagePlus img = BF.openImagePlus(options)[0];
-						if (i == 0) {
-							illumination_img = Views.hyperSlice(ImagePlusAdapter.convertFloat(
-								img), 2, dapiChannelIndex);
-						}
-						else {
-							LoopBuilder.setImages(illumination_img, Views.hyperSlice(
-								ImagePlusAdapter.convertFloat(img), 2, dapiChannelIndex))
-								.forEachPixel((s, t) -> s.setReal(s.getRealFloat() + t
-									.getRealFloat()));
-						}
-						images.add(createMIP(img, ZProjector.MAX_METHOD));
-						options.setSeriesOn(i, false);
-						options.setSeriesOn(i + 1, true);
+					VisiviewDataset session = openDataset();
+					int[] dims = session.getDimensions(0);
+					if (useIlluminationProfiles && !IlluminationProfileStore
+						.hasCompleteKeys(session.getMetadata(), 0, dims[2]))
+					{
+						logService.warn(
+							"Channel, objective or binning metadata is missing (" +
+								IlluminationProfileStore.key(session.getMetadata(), 0, 0,
+									dims[0], dims[1]) +
+								"), illumination profiles are neither reused nor saved.");
+					}
+					else if (useIlluminationProfiles) {
+						storedProfiles = store.get(session.getMetadata(), 0, dims[2],
+							IlluminationProfileStore.FLAT, dims[0], dims[1]);
+					}
+					if (storedProfiles != null) {
+						logService.info("Using stored illumination profiles.");
+						images = TilePipeline.read(nLoaderThreads, i -> StreamingProjector
+							.project(session, i, ZProjector.MAX_METHOD, false, null)).run(
+								nSeries);
+					}
+					else {
+						int bytesPerPixel = FormatTools.getBytesPerPixel(session
+							.getPixelType(0));
+						flatFieldEstimator = new FlatFieldEstimator(dims[0], dims[1],
+							dims[2], FlatFieldEstimator.DEFAULT_BLOCK_SIZE,
+							bytesPerPixel == 1 ? 255 : 65535);
+						images = TilePipeline.read(nLoaderThreads,
+							i -> accumulateIllumination(StreamingProjector.project(session,
+								i, ZProjector.MAX_METHOD, false, null))).run(nSeries);
 					}
 				}
 				catch (IOException exc) {
@@ -261,29 +304,28 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 				}
 
 				try {
-					final float n_tiles = (float) images.size();
-					LoopBuilder.setImages(illumination_img).forEachPixel(s -> s.setReal(s
-						.getRealFloat() / n_tiles));
-					final Img<FloatType> fitted_illumination_field = getIlluminationField(
-						illumination_img, dapiChannelIndex);
-					estimatedIlluminationField = ImageJFunctions.wrap(
-						fitted_illumination_field, "Estimated Illumination Field");
+					FlatFieldCorrection correction;
+					if (storedProfiles != null) {
+						correction = new FlatFieldCorrection(images.get(0).getWidth(),
+							images.get(0).getHeight(), storedProfiles, null, 1f, false);
+					}
+					else {
+						estimatedIlluminationField = getIlluminationFields();
+						ImagePlus inverseField = estimatedIlluminationField.duplicate();
+						FlatFieldCorrection.invert(inverseField);
+						if (useIlluminationProfiles) {
+							store.put(openDataset().getMetadata(), 0,
+								IlluminationProfileStore.FLAT, inverseField.getWidth(),
+								inverseField.getHeight(), FlatFieldCorrection.channelPlanes(
+									inverseField, (int) nChannels));
+						}
+						correction = new FlatFieldCorrection(inverseField, null,
+							(int) nChannels);
+					}
 
 					logService.info("Correcting illumination...");
-					final FloatType min = new FloatType();
-					final FloatType max = new FloatType();
-					ComputeMinMax.computeMinMax(fitted_illumination_field, min, max);
 					for (ImagePlus mip : images) {
-						IntervalView<RealType> dapi = (IntervalView<RealType>) Views
-							.hyperSlice((ImgPlus<?>) ImagePlusAdapter.wrapImgPlus(mip), 2,
-								dapiChannelIndex);
-						LoopBuilder.setImages(dapi, fitted_illumination_field).forEachPixel(
-							(dapi_pixel, illumination_field_pixel) -> {
-								dapi_pixel.setReal(dapi_pixel.getRealFloat() /
-									illumination_field_pixel.getRealFloat() * max
-										.getRealDouble());
-							});
-
+						correction.apply(mip, 1);
 					}
 				}
 				catch (Exception exc) {
@@ -293,7 +335,9 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 
 				logService.info("Stitching MIPs...");
 				models = StitchingUtils.computeStitching(images, pixelPositions, 2,
-					stitchingMode.equals(COMPUTE_NONE) ? false : true, saveRAM);
+					stitchingMode.equals(COMPUTE_NONE) ? false : true,
+					registrationChannel, Integer.parseInt(registrationBinning),
+					StitchingUtils.DEFAULT_MIN_OVERLAP, registrationEngine());
 
 				// case: via MIP: go on with full dataset
 				// load all full series into imps[]
@@ -310,18 +354,17 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 
 				// stitchClassical(tileConfigPath);
 				try {
-					// load all series into imps[]
-					ImporterOptions options = new ImporterOptions();
-					options.setOpenAllSeries(true);
-					options.setId(ndFile.getAbsolutePath());
-					ImagePlus[] imps = BF.openImagePlus(options);
-
-					images = new ArrayList<>();
-					images.addAll(Arrays.asList(imps));
-					// computeStitching
-					models = StitchingUtils.computeStitching(images, pixelPositions, is2D
-						? 2 : 3, stitchingMode.equals(COMPUTE_NONE) ? false : true,
-						saveRAM);
+					// open all series as tiles that load their planes on demand
+					LazyTileLoader loader = new LazyTileLoader(openDataset(),
+						tileCacheSize * 1024 * 1024);
+					images = loader.openTiles(nSeries);
+					// computeStitching, reading only the registration channel if set
+					ArrayList<ImagePlus> registrationTiles = registrationChannel > 0
+						? loader.openTiles(nSeries, registrationChannel - 1) : images;
+					models = StitchingUtils.computeStitching(registrationTiles,
+						pixelPositions, is2D ? 2 : 3, stitchingMode.equals(COMPUTE_NONE)
+							? false : true, 0, Integer.parseInt(registrationBinning),
+						StitchingUtils.DEFAULT_MIN_OVERLAP, registrationEngine());
 					// fuseTiles
 					fused = StitchingUtils.fuseTiles(images, models, is2D ? 2 : 3);
 				}
@@ -372,32 +415,41 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 
 	}
 
-	@Nullable
-	private Img<FloatType> getIlluminationField(
-		final IntervalView<FloatType> tile_mips, final int dapi_channel_index)
-	{
-
-		final ImagePlus mip_stack = ImageJFunctions.wrap(Views.moveAxis(Views
-			.addDimension(tile_mips, 0, 0), 3, 2), "tile_mip_stack");
-
-		final ImagePlus illumination_field = createMIP(mip_stack,
-			ZProjector.MAX_METHOD);
-
-		final Localizable center_point = new Point(new long[] { illumination_field
-			.getProcessor().getWidth() / 2, illumination_field.getProcessor()
-				.getHeight() / 2 });
-
-		logService.info("Fitting Gaussian to estimate illumination field...");
-		final Gaussian gaussian = new Gaussian();
-		final PeakFitter fitter = new PeakFitter(ImagePlusAdapter.wrap(
-			illumination_field), Arrays.asList(center_point),
-			new LevenbergMarquardtSolver(), gaussian, new MLGaussianEstimator(
-				illumination_field.getProcessor().getWidth() / 3.0, 2));
+	private RegistrationEngine registrationEngine() {
+		return new RegistrationEngine(nRegistrationThreads, registrationMemoryMB *
+			1024L * 1024L, null, logService);
+	}
 
-		fitter.checkInput();
-		fitter.process();
+	/**
+	 * Fit a Gaussian illumination field for every channel, to the mean or
+	 * low percentile of the tiles.
+	 * 
+	 * @return Fitted illumination fields, one channel each
+	 */
+	private ImagePlus getIlluminationFields() {
+		final int width = images.get(0).getWidth();
+		final int height = images.get(0).getHeight();
+		final ImageStack fields = new ImageStack(width, height);
+		for (int c = 0; c < nChannels; c++) {
+			final float[] illumination = flatFieldPercentile > 0
+				? flatFieldEstimator.getPercentile(c, flatFieldPercentile / 100)
+				: flatFieldEstimator.getMean(c);
+			fields.addSlice("C" + (c + 1), getIlluminationField(new FloatProcessor(
+				width, height, illumination), c));
+		}
+		final ImagePlus imp = new ImagePlus("Estimated Illumination Field",
+			fields);
+		imp.setDimensions(fields.getSize(), 1, 1);
+		return imp;
+	}
 
-		double[] gaussian_params = (double[]) fitter.getResult().get(center_point);
+	private FloatProcessor getIlluminationField(
+		final FloatProcessor illumination_field, final int channel)
+	{
+		logService.info("Fitting Gaussian to estimate illumination field of channel " +
+			(channel + 1) + "...");
+		final double[] gaussian_params = GaussianIlluminationField.fit(
+			illumination_field);
 		logService.info("Fitted Gaussian parameters:");
 		logService.info(" - X position: " + String.format("%.2f",
 			gaussian_params[0]));
@@ -408,24 +460,21 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 		logService.info(" - Sigma     : " + String.format("%.2f", 1. / Math.sqrt(
 			2. * gaussian_params[3])));
 
-		final Img<FloatType> fitted_illumination_field = ImagePlusAdapter
-			.convertFloat(illumination_field.duplicate());
-		final double[] pos = new double[2];
-		LoopBuilder.setImages(Intervals.positions(fitted_illumination_field),
-			fitted_illumination_field).forEachPixel((position, pixel) -> {
-				position.localize(pos);
-				pixel.setReal(gaussian.val(pos, gaussian_params));
-			});
-		return fitted_illumination_field;
+		return GaussianIlluminationField.render(gaussian_params,
+			illumination_field.getWidth(), illumination_field.getHeight(), Runtime
+				.getRuntime().availableProcessors());
 	}
 
-	private ImagePlus createMIP(final ImagePlus imp, final int method) {
-		ZProjector zp = new ZProjector(imp);
-		zp.setMethod(method);
-		zp.setStopSlice(imp.getNSlices());
-		zp.doHyperStackProjection(false);
-		imp.close();
-		return zp.getProjection();
+	/**
+	 * Add the channels of a tile projection to the flat-field statistics.
+	 * Projections may be added concurrently and in any order.
+	 */
+	private ImagePlus accumulateIllumination(ImagePlus mip) {
+		for (int c = 0; c < mip.getNChannels(); c++) {
+			flatFieldEstimator.add(c, mip.getStack().getPixels(mip.getStackIndex(c +
+				1, 1, 1)));
+		}
+		return mip;
 	}
 
 	@SuppressWarnings("unused")
@@ -500,18 +549,19 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 		// TODO use scifio.initialize() and scifio.translate() with OMEMetadata here
 		// to get series names
 
-		IMetadata omeMeta = MetadataTools.createOMEXMLMetadata();
-		try (ImageReader reader = new ImageReader()) {
-			reader.setMetadataStore(omeMeta);
-			reader.setId(ndFile.getAbsolutePath());
+		IMetadata omeMeta;
+		try {
+			omeMeta = openDataset().getMetadata();
 		}
 		catch (FormatException exc) {
 			logService.debug("No compatible format", exc);
 			ndMessage = "No compatible format";
+			return;
 		}
 		catch (IOException exc) {
 			logService.debug("Error parsing nd file", exc);
 			ndMessage = "Error parsing nd file";
+			return;
 		}
 		nSeries = omeMeta.getImageCount();
 		xSize = omeMeta.getPixelsSizeX(0).getValue();
@@ -630,6 +680,29 @@ public class StitchVisiviewIlluminationCorrectedDatasetCommand extends
 		*/
 	}
 
+	/**
+	 * Get the session on the current nd file, re-opening it only if the file
+	 * has changed.
+	 */
+	private VisiviewDataset openDataset() throws FormatException, IOException {
+		if (dataset == null || !dataset.isCurrent(ndFile)) {
+			closeDataset();
+			dataset = new VisiviewDataset(ndFile);
+		}
+		return dataset;
+	}
+
+	private void closeDataset() {
+		if (dataset == null) return;
+		try {
+			dataset.close();
+		}
+		catch (IOException exc) {
+			logService.debug("Error closing dataset", exc);
+		}
+		dataset = null;
+	}
+
 	private void updateStgFileInfo() {
 		try {
 			pixelPositions = VisiviewUtils.positionsFromStgFile(stgFile, xCal, yCal);
@@ -0,0 +1,257 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching.visiview;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import ch.fmi.stitching.ProjectionAccumulator;
+import ch.fmi.stitching.ProjectionAccumulator.Statistic;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ZProjector;
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+
+/**
+ * Compute z projections of a series while its planes are read.
+ * <p>
+ * Each plane is folded into a running {@link ProjectionAccumulator} (one per
+ * channel and time point) as soon as it has been read, and is discarded
+ * afterwards. Only the accumulated projections are held in memory,
+ * independent of the number of slices. A single projection only accumulates
+ * its own statistic; {@link #projectAll} computes all projections in the same
+ * pass, so consumers needing several of them read each plane only once.
+ * </p>
+ */
+public class StreamingProjector {
+
+	/**
+	 * Callback receiving every plane of a series before it is projected.
+	 */
+	@FunctionalInterface
+	public interface PlaneListener {
+
+		/**
+		 * @param c Channel index (0-based)
+		 * @param z Slice index (0-based)
+		 * @param t Frame index (0-based)
+		 * @param ip Plane pixels; only valid during this call
+		 */
+		void plane(int c, int z, int t, ImageProcessor ip);
+	}
+
+	private StreamingProjector() {
+		// prevent instantiation of static utility class
+	}
+
+	/**
+	 * Project a series along z.
+	 *
+	 * @param dataset Dataset session to read from
+	 * @param series Series index
+	 * @param method Projection method, one of {@link ZProjector#MAX_METHOD},
+	 *          {@link ZProjector#MIN_METHOD}, {@link ZProjector#SUM_METHOD} or
+	 *          {@link ZProjector#AVG_METHOD}
+	 * @return Projection with the channels and time points of the series
+	 * @throws FormatException if the series could not be read
+	 * @throws IOException if the series could not be read
+	 */
+	public static ImagePlus project(VisiviewDataset dataset, int series,
+		int method) throws FormatException, IOException
+	{
+		return project(dataset, series, method, true, null);
+	}
+
+	/**
+	 * Project a series along z, passing each plane to a listener as well.
+	 *
+	 * @param dataset Dataset session to read from
+	 * @param series Series index
+	 * @param method Projection method, one of {@link ZProjector#MAX_METHOD},
+	 *          {@link ZProjector#MIN_METHOD}, {@link ZProjector#SUM_METHOD} or
+	 *          {@link ZProjector#AVG_METHOD}
+	 * @param allTimeFrames If true, project all time points; if false, only the
+	 *          first one (as {@link ZProjector#doHyperStackProjection})
+	 * @param listener Listener receiving every plane read, or {@code null}
+	 * @return Projection with the channels (and time points) of the series
+	 * @throws FormatException if the series could not be read
+	 * @throws IOException if the series could not be read
+	 */
+	public static ImagePlus project(VisiviewDataset dataset, int series,
+		int method, boolean allTimeFrames, PlaneListener listener)
+		throws FormatException, IOException
+	{
+		return project(dataset, series, EnumSet.of(statistic(method)),
+			ProjectionAccumulator.NO_PERCENTILE, allTimeFrames, listener).get(method);
+	}
+
+	/**
+	 * Compute all projections of a series along z in a single pass.
+	 *
+	 * @param dataset Dataset session to read from
+	 * @param series Series index
+	 * @param percentile Percentile to estimate (between 0 and 1), or
+	 *          {@link ProjectionAccumulator#NO_PERCENTILE}
+	 * @param allTimeFrames If true, project all time points; if false, only the
+	 *          first one
+	 * @param listener Listener receiving every plane read, or {@code null}
+	 * @return Maximum, minimum, sum, mean and (optionally) percentile
+	 *         projections
+	 * @throws FormatException if the series could not be read
+	 * @throws IOException if the series could not be read
+	 */
+	public static Projections projectAll(VisiviewDataset dataset, int series,
+		double percentile, boolean allTimeFrames, PlaneListener listener)
+		throws FormatException, IOException
+	{
+		return project(dataset, series, EnumSet.allOf(Statistic.class),
+			percentile, allTimeFrames, listener);
+	}
+
+	private static Projections project(VisiviewDataset dataset, int series,
+		Set<Statistic> statistics, double percentile, boolean allTimeFrames,
+		PlaneListener listener) throws FormatException, IOException
+	{
+		int[] dims = dataset.getDimensions(series);
+		int width = dims[0];
+		int height = dims[1];
+		int sizeC = dims[2];
+		int sizeZ = dims[3];
+		int sizeT = allTimeFrames ? dims[4] : 1;
+		Projections projections = new Projections(dataset.getMetadata()
+			.getImageName(series), width, height, sizeC, sizeT, statistics, !Double
+				.isNaN(percentile));
+		for (int t = 0; t < sizeT; t++) {
+			for (int c = 0; c < sizeC; c++) {
+				ProjectionAccumulator acc = new ProjectionAccumulator(width * height,
+					statistics, percentile);
+				for (int z = 0; z < sizeZ; z++) {
+					ImageProcessor ip = dataset.openPlane(series, c, z, t);
+					if (listener != null) listener.plane(c, z, t, ip);
+					acc.add(ip.getPixels());
+				}
+				projections.add(acc);
+			}
+		}
+		return projections;
+	}
+
+	private static Statistic statistic(int method) {
+		switch (method) {
+			case ZProjector.MAX_METHOD:
+				return Statistic.MAX;
+			case ZProjector.MIN_METHOD:
+				return Statistic.MIN;
+			case ZProjector.SUM_METHOD:
+				return Statistic.SUM;
+			case ZProjector.AVG_METHOD:
+				return Statistic.MEAN;
+			default:
+				throw new IllegalArgumentException("Unsupported projection method: " +
+					method);
+		}
+	}
+
+	/**
+	 * Projections of a series, as hyperstacks with the channels and time points
+	 * of the series. Only the projections of the accumulated statistics are
+	 * kept.
+	 */
+	public static class Projections {
+
+		private final String title;
+		private final int sizeC;
+		private final int sizeT;
+		private final ImageStack max;
+		private final ImageStack min;
+		private final ImageStack sum;
+		private final ImageStack mean;
+		private final ImageStack percentile;
+
+		private Projections(String title, int width, int height, int sizeC,
+			int sizeT, Set<Statistic> statistics, boolean hasPercentile)
+		{
+			this.title = title;
+			this.sizeC = sizeC;
+			this.sizeT = sizeT;
+			max = statistics.contains(Statistic.MAX) ? new ImageStack(width, height)
+				: null;
+			min = statistics.contains(Statistic.MIN) ? new ImageStack(width, height)
+				: null;
+			sum = statistics.contains(Statistic.SUM) ? new ImageStack(width, height)
+				: null;
+			mean = statistics.contains(Statistic.MEAN) ? new ImageStack(width,
+				height) : null;
+			percentile = hasPercentile ? new ImageStack(width, height) : null;
+		}
+
+		private void add(ProjectionAccumulator acc) {
+			if (max != null) max.addSlice(null, acc.getMax());
+			if (min != null) min.addSlice(null, acc.getMin());
+			if (sum != null) sum.addSlice(null, acc.getSum());
+			if (mean != null) mean.addSlice(null, acc.getMean());
+			if (percentile != null) percentile.addSlice(null, acc.getPercentile());
+		}
+
+		/**
+		 * @param method Projection method, one of {@link ZProjector#MAX_METHOD},
+		 *          {@link ZProjector#MIN_METHOD}, {@link ZProjector#SUM_METHOD}
+		 *          or {@link ZProjector#AVG_METHOD}
+		 * @return Projection
+		 */
+		public ImagePlus get(int method) {
+			switch (statistic(method)) {
+				case MAX:
+					return wrap("MAX_", max);
+				case MIN:
+					return wrap("MIN_", min);
+				case SUM:
+					return wrap("SUM_", sum);
+				default:
+					return wrap("AVG_", mean);
+			}
+		}
+
+		/**
+		 * @return Percentile projection, or {@code null} if no percentile was
+		 *         requested
+		 */
+		public ImagePlus getPercentile() {
+			return percentile == null ? null : wrap("PCT_", percentile);
+		}
+
+		private ImagePlus wrap(String prefix, ImageStack stack) {
+			if (stack == null) {
+				throw new IllegalArgumentException(prefix.substring(0, prefix.length() -
+					1) + " projection was not computed");
+			}
+			ImagePlus imp = new ImagePlus(prefix + title, stack);
+			imp.setDimensions(sizeC, 1, sizeT);
+			imp.setOpenAsHyperStack(true);
+			return imp;
+		}
+	}
+}
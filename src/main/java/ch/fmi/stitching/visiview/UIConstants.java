@@ -28,6 +28,7 @@ public class UIConstants {
 	protected static final String COMPUTE_NONE = "Quick (do not compute overlap)";
 	protected static final String COMPUTE_VIA_MIP = "Compute overlap on maximum projection";
 	protected static final String COMPUTE_FULL = "Compute overlap on full volume";
+	protected static final String COMPUTE_OVERLAP_REGIONS = "Compute overlap on full volume (read overlap regions only)";
 
 	protected static final String OUTPUT_TXT = "Coordinates text file only";
 	protected static final String OUTPUT_MIP = "Maximum projection only";
@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.fmi.stitching.visiview;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+
+/**
+ * Session on a dataset readable by Bio-Formats (e.g. a VisiView nd file).
+ * <p>
+ * The dataset is parsed once when the session is created, and the parsed
+ * reader state is memoized on disk (see {@link Memoizer}), so that re-opening
+ * the same, unmodified file in a later run only deserializes the memo.
+ * Additional readers needed for concurrent access are initialized from the
+ * same memo. Planes and series are handed out by readers from a pool, so a
+ * session can be shared between threads.
+ * </p>
+ */
+public class VisiviewDataset implements AutoCloseable {
+
+	private final File file;
+	private final long lastModified;
+	private final File memoDirectory;
+	private final IMetadata metadata;
+
+	private final BlockingQueue<ImageProcessorReader> idleReaders =
+		new LinkedBlockingQueue<>();
+	private final List<ImageProcessorReader> readers = Collections
+		.synchronizedList(new ArrayList<>());
+
+	/**
+	 * Open a session, keeping the memo file next to the dataset.
+	 *
+	 * @param file Dataset file
+	 * @throws FormatException if the file format is not supported
+	 * @throws IOException if the file could not be parsed
+	 */
+	public VisiviewDataset(File file) throws FormatException, IOException {
+		this(file, null);
+	}
+
+	/**
+	 * Open a session, keeping the memo file in a given directory.
+	 *
+	 * @param file Dataset file
+	 * @param memoDirectory Directory for memo files, or {@code null} to store
+	 *          them next to the dataset
+	 * @throws FormatException if the file format is not supported
+	 * @throws IOException if the file could not be parsed
+	 */
+	public VisiviewDataset(File file, File memoDirectory) throws FormatException,
+		IOException
+	{
+		this.file = file.getAbsoluteFile();
+		this.lastModified = file.lastModified();
+		this.memoDirectory = memoDirectory;
+		metadata = MetadataTools.createOMEXMLMetadata();
+		idleReaders.add(createReader(metadata));
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @param other Dataset file
+	 * @return true if this session was opened on {@code other}, and the file
+	 *         has not been modified since
+	 */
+	public boolean isCurrent(File other) {
+		return other != null && file.equals(other.getAbsoluteFile()) &&
+			lastModified == other.lastModified();
+	}
+
+	/**
+	 * @return OME metadata of the dataset, parsed when the session was opened
+	 */
+	public IMetadata getMetadata() {
+		return metadata;
+	}
+
+	public int getSeriesCount() {
+		return metadata.getImageCount();
+	}
+
+	/**
+	 * @return Names of all series (i.e. stage positions), in series order
+	 */
+	public List<String> getPositionNames() {
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < getSeriesCount(); i++) {
+			names.add(metadata.getImageName(i));
+		}
+		return names;
+	}
+
+	/**
+	 * @param series Series index
+	 * @return Size of the series in X, Y, C, Z and T
+	 */
+	public int[] getDimensions(int series) {
+		return new int[] { metadata.getPixelsSizeX(series).getValue(), metadata
+			.getPixelsSizeY(series).getValue(), metadata.getPixelsSizeC(series)
+				.getValue(), metadata.getPixelsSizeZ(series).getValue(), metadata
+					.getPixelsSizeT(series).getValue() };
+	}
+
+	/**
+	 * @param series Series index
+	 * @return All files of the series, including the dataset file and the files
+	 *         holding its pixels
+	 * @throws FormatException if the dataset could not be read
+	 * @throws IOException if the dataset could not be read
+	 */
+	public List<File> getSeriesUsedFiles(int series) throws FormatException,
+		IOException
+	{
+		ImageProcessorReader reader = borrowReader();
+		try {
+			reader.setSeries(series);
+			List<File> files = new ArrayList<>();
+			for (String path : reader.getSeriesUsedFiles()) {
+				files.add(new File(path));
+			}
+			return files;
+		}
+		finally {
+			idleReaders.add(reader);
+		}
+	}
+
+	/**
+	 * @param series Series index
+	 * @return Bio-Formats pixel type of the series, see {@link FormatTools}
+	 * @throws FormatException if the dataset could not be read
+	 * @throws IOException if the dataset could not be read
+	 */
+	public int getPixelType(int series) throws FormatException, IOException {
+		ImageProcessorReader reader = borrowReader();
+		try {
+			reader.setSeries(series);
+			return reader.getPixelType();
+		}
+		finally {
+			idleReaders.add(reader);
+		}
+	}
+
+	/**
+	 * Read a single series as a (hyper)stack.
+	 *
+	 * @param series Series index
+	 * @return All planes of the series, in ImageJ's CZT order
+	 * @throws FormatException if the series could not be read
+	 * @throws IOException if the series could not be read
+	 */
+	public ImagePlus openSeries(int series) throws FormatException, IOException {
+		ImageProcessorReader reader = borrowReader();
+		try {
+			reader.setSeries(series);
+			int sizeC = reader.getEffectiveSizeC();
+			int sizeZ = reader.getSizeZ();
+			int sizeT = reader.getSizeT();
+			ImageStack stack = new ImageStack(reader.getSizeX(), reader.getSizeY());
+			for (int t = 0; t < sizeT; t++) {
+				for (int z = 0; z < sizeZ; z++) {
+					for (int c = 0; c < sizeC; c++) {
+						stack.addSlice(null, reader.openProcessors(reader.getIndex(z, c,
+							t))[0]);
+					}
+				}
+			}
+			ImagePlus imp = new ImagePlus(metadata.getImageName(series), stack);
+			imp.setDimensions(sizeC, sizeZ, sizeT);
+			imp.setOpenAsHyperStack(true);
+			return imp;
+		}
+		finally {
+			idleReaders.add(reader);
+		}
+	}
+
+	/**
+	 * Read a single plane.
+	 *
+	 * @param series Series index
+	 * @param c Channel index (0-based)
+	 * @param z Slice index (0-based)
+	 * @param t Frame index (0-based)
+	 * @return Plane pixels
+	 * @throws FormatException if the plane could not be read
+	 * @throws IOException if the plane could not be read
+	 */
+	public ImageProcessor openPlane(int series, int c, int z, int t)
+		throws FormatException, IOException
+	{
+		ImageProcessorReader reader = borrowReader();
+		try {
+			reader.setSeries(series);
+			return reader.openProcessors(reader.getIndex(z, c, t))[0];
+		}
+		finally {
+			idleReaders.add(reader);
+		}
+	}
+
+	/**
+	 * Read a region of a single plane.
+	 *
+	 * @param series Series index
+	 * @param c Channel index (0-based)
+	 * @param z Slice index (0-based)
+	 * @param t Frame index (0-based)
+	 * @param region Region to read, in pixel coordinates
+	 * @return Pixels of the region
+	 * @throws FormatException if the plane could not be read
+	 * @throws IOException if the plane could not be read
+	 */
+	public ImageProcessor openPlane(int series, int c, int z, int t,
+		Rectangle region) throws FormatException, IOException
+	{
+		ImageProcessorReader reader = borrowReader();
+		try {
+			reader.setSeries(series);
+			return reader.openProcessors(reader.getIndex(z, c, t), region.x,
+				region.y, region.width, region.height)[0];
+		}
+		finally {
+			idleReaders.add(reader);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (readers) {
+			for (ImageProcessorReader reader : readers) {
+				reader.close();
+			}
+			readers.clear();
+		}
+		idleReaders.clear();
+	}
+
+	private ImageProcessorReader borrowReader() throws FormatException,
+		IOException
+	{
+		ImageProcessorReader reader = idleReaders.poll();
+		return reader != null ? reader : createReader(MetadataTools
+			.createOMEXMLMetadata());
+	}
+
+	private ImageProcessorReader createReader(IMetadata store)
+		throws FormatException, IOException
+	{
+		ImageProcessorReader reader = new ImageProcessorReader(new ChannelSeparator(
+			new Memoizer(LociPrefs.makeImageReader(), 0, memoDirectory)));
+		reader.setMetadataStore(store);
+		try {
+			reader.setId(file.getAbsolutePath());
+		}
+		catch (FormatException | IOException exc) {
+			reader.close();
+			throw exc;
+		}
+		readers.add(reader);
+		return reader;
+	}
+}
@@ -32,16 +32,17 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileInfo;
 import ij.io.TiffDecoder;
-import ij.plugin.Concatenator;
-import ij.plugin.HyperStackConverter;
 
 public class VisiviewUtils {
 
@@ -147,14 +148,144 @@ public class VisiviewUtils {
 	}
 
 	public static ImagePlus loadPositionStack(List<File> fileList, int nChannels, int nTimepoints) {
-		ImagePlus[] imageArray = new ImagePlus[nChannels * nTimepoints];
-		int i=0;
-		for (File file : fileList) {
-			imageArray[i++] = IJ.openImage(file.getAbsolutePath());
+		return loadPositionStack(fileList, nChannels, nTimepoints, allChannels(nChannels));
+	}
+
+	/**
+	 * Load a subset of channels of one stage position as a CZT-ordered
+	 * hyperstack. The pixel arrays of the opened files are added to the
+	 * resulting stack by reference, without copying; files of unselected
+	 * channels are not read at all.
+	 * 
+	 * @param fileList List of files (CT-ordered), as returned by
+	 *          {@link #getCompanionFiles}
+	 * @param nChannels Number of channels in the dataset
+	 * @param nTimepoints Number of time points in the dataset
+	 * @param channels Zero-based indices of the channels to load
+	 * @return Hyperstack with {@code channels.length} channels
+	 */
+	public static ImagePlus loadPositionStack(List<File> fileList, int nChannels,
+		int nTimepoints, int[] channels)
+	{
+		List<File> selectedFiles = selectChannels(fileList, nChannels, channels);
+		ImagePlus[] imageArray = new ImagePlus[selectedFiles.size()];
+		for (int i = 0; i < imageArray.length; i++) {
+			imageArray[i] = IJ.openImage(selectedFiles.get(i).getAbsolutePath());
+			if (imageArray[i] == null) {
+				throw new RuntimeException("Could not open " + selectedFiles.get(i));
+			}
+		}
+		ImagePlus first = imageArray[0];
+		int nSlices = first.getStackSize();
+		ImageStack stack = new ImageStack(first.getWidth(), first.getHeight());
+		for (int t = 0; t < nTimepoints; t++) {
+			for (int z = 1; z <= nSlices; z++) {
+				for (int c = 0; c < channels.length; c++) {
+					ImagePlus imp = imageArray[t * channels.length + c];
+					if (imp.getStackSize() != nSlices) {
+						throw new RuntimeException("Inconsistent number of slices in " +
+							imp.getTitle());
+					}
+					stack.addSlice(imp.getTitle(), imp.getStack().getPixels(z));
+				}
+			}
 		}
-		ImagePlus concatenatedStack = new Concatenator().concatenate(imageArray, false);
-		new HyperStackConverter().shuffle(concatenatedStack, HyperStackConverter.ZCT);
-		return concatenatedStack;
+		ImagePlus result = new ImagePlus(first.getTitle(), stack);
+		result.setDimensions(channels.length, nSlices, nTimepoints);
+		result.setOpenAsHyperStack(true);
+		result.setCalibration(first.getCalibration());
+		return result;
+	}
+
+	/**
+	 * Split a hyperstack into one tile per z slice. Each tile contains all
+	 * channels and time points of its slice, and references the pixel arrays of
+	 * the source stack instead of copying them.
+	 * 
+	 * @param imp Source hyperstack, with one stage position per z slice
+	 * @return List of tiles, in slice order
+	 */
+	public static ArrayList<ImagePlus> splitSlices(ImagePlus imp) {
+		ImageStack source = imp.getStack();
+		int nChannels = imp.getNChannels();
+		int nFrames = imp.getNFrames();
+		ArrayList<ImagePlus> tiles = new ArrayList<>();
+		for (int z = 1; z <= imp.getNSlices(); z++) {
+			ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+			for (int t = 1; t <= nFrames; t++) {
+				for (int c = 1; c <= nChannels; c++) {
+					int index = imp.getStackIndex(c, z, t);
+					stack.addSlice(source.getSliceLabel(index), source.getPixels(index));
+				}
+			}
+			ImagePlus tile = new ImagePlus(imp.getTitle() + "_z" + z, stack);
+			tile.setDimensions(nChannels, 1, nFrames);
+			tile.setOpenAsHyperStack(true);
+			tile.setCalibration(imp.getCalibration());
+			tiles.add(tile);
+		}
+		return tiles;
+	}
+
+	/**
+	 * Select the files of a subset of channels from a CT-ordered file list.
+	 * 
+	 * @param fileList List of files (CT-ordered)
+	 * @param nChannels Number of channels in the dataset
+	 * @param channels Zero-based indices of the channels to select
+	 * @return CT-ordered list of the selected files
+	 */
+	public static List<File> selectChannels(List<File> fileList, int nChannels,
+		int[] channels)
+	{
+		List<File> selected = new ArrayList<>();
+		for (int t = 0; t < fileList.size() / nChannels; t++) {
+			for (int c : channels) {
+				selected.add(fileList.get(t * nChannels + c));
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Parse a channel selection such as {@code "2-4"} or {@code "1,4"} (one-based,
+	 * as entered by the user).
+	 * 
+	 * @param selection Channel selection string; empty or {@code null} for all
+	 *          channels
+	 * @param nChannels Number of channels in the dataset
+	 * @return Sorted zero-based channel indices
+	 * @throws IllegalArgumentException if the selection cannot be parsed or is
+	 *           out of range
+	 */
+	public static int[] parseChannelSelection(String selection, int nChannels) {
+		if (selection == null || selection.trim().isEmpty()) {
+			return allChannels(nChannels);
+		}
+		TreeSet<Integer> channels = new TreeSet<>();
+		try {
+			for (String token : selection.split(",")) {
+				String[] range = token.trim().split("-");
+				int from = Integer.parseInt(range[0].trim());
+				int to = range.length > 1 ? Integer.parseInt(range[1].trim()) : from;
+				if (range.length > 2 || from < 1 || to > nChannels || from > to) {
+					throw new IllegalArgumentException("Invalid channel selection: " +
+						selection);
+				}
+				for (int c = from; c <= to; c++) {
+					channels.add(c - 1);
+				}
+			}
+		}
+		catch (NumberFormatException exc) {
+			throw new IllegalArgumentException("Invalid channel selection: " +
+				selection, exc);
+		}
+		return channels.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static int[] allChannels(int nChannels) {
+		return IntStream.range(0, nChannels).toArray();
 	}
 
 	public static int getNChannels(Map<String, String> info) {
@@ -3,6 +3,7 @@
 #@ String (choices = {"Full volume output", "Maximum projection only"}, label = "Output mode") outputMode
 #@ String (choices = {"tif", "ics/ids", "ims"}, style = "radioButtonVertical") outputFormat
 #@ File (style="extensions:tif/tiff", required=false) illumination_reference
+#@ Boolean (label = "Use stored illumination profiles", value = false) use_illumination_profiles
 #@ Double xCal
 #@ Double yCal
 #@ Double zCal
@@ -43,8 +44,11 @@ inputMap["formatService"] = formatService
 inputMap["logService"] = logService
 
 if (illumination_reference != null && illumination_reference.exists()) {
-	inputMap["illuminationCorrection"] = IlluminationCorrectionMethod.FROM_FILE
+	// with stored profiles, the reference is only read for configurations without a profile
+	inputMap["illuminationCorrection"] = use_illumination_profiles ? IlluminationCorrectionMethod.FROM_PROFILE_STORE : IlluminationCorrectionMethod.FROM_FILE
 	inputMap["illuminationReference"] = illumination_reference
+} else if (use_illumination_profiles) {
+	inputMap["illuminationCorrection"] = IlluminationCorrectionMethod.FROM_PROFILE_STORE
 }
 
 for (ndFile in inputFiles) {
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.StitchingParameters;
+
+public class CoarseToFineRegistrationTest {
+
+	private static final int SIZE = 700;
+	private static final int TILE = 256;
+
+	@Test
+	public void testBinnedRegistration() {
+		float[] image = TestImages.smoothNoise(new Random(5), SIZE, 4);
+		// 2x2 grid with a stage step of 180 pixels, and stage errors of a few
+		// pixels
+		List<float[]> stage = Arrays.asList(new float[] { 0, 0 }, new float[] {
+			180, 0 }, new float[] { 0, 180 }, new float[] { 180, 180 });
+		int[][] truth = { { 40, 40 }, { 226, 33 }, { 35, 229 }, { 213, 224 } };
+		ArrayList<ImagePlus> tiles = new ArrayList<>();
+		for (int[] p : truth) {
+			tiles.add(new ImagePlus("tile", new FloatProcessor(TILE, TILE,
+				TestImages.crop(image, SIZE, p[0], p[1], TILE, TILE))));
+		}
+
+		for (int binning : new int[] { 1, 4 }) {
+			ArrayList<InvertibleBoundable> models = CoarseToFineRegistration
+				.register(tiles, stage, parameters(), binning,
+					StitchingUtils.DEFAULT_MIN_OVERLAP, new RegistrationEngine(2, 0));
+			double[] origin = ((TranslationModel2D) models.get(0)).getTranslation();
+			for (int i = 1; i < truth.length; i++) {
+				double[] t = ((TranslationModel2D) models.get(i)).getTranslation();
+				assertEquals(truth[i][0] - truth[0][0], t[0] - origin[0], 0.5);
+				assertEquals(truth[i][1] - truth[0][1], t[1] - origin[1], 0.5);
+			}
+		}
+	}
+
+	@Test
+	public void testBuildPyramid() {
+		float[] pixels = new float[16 * 8];
+		Arrays.fill(pixels, 2f);
+		List<FloatProcessor> pyramid = CoarseToFineRegistration.buildPyramid(
+			new FloatProcessor(16, 8, pixels), 2);
+		assertEquals(2, pyramid.size());
+		assertEquals(8, pyramid.get(0).getWidth());
+		assertEquals(4, pyramid.get(1).getWidth());
+		assertEquals(2, pyramid.get(1).getHeight());
+		assertEquals(2f, pyramid.get(1).getf(0), 1e-6f);
+	}
+
+	private static StitchingParameters parameters() {
+		StitchingParameters params = new StitchingParameters();
+		params.dimensionality = 2;
+		params.channel1 = 0;
+		params.checkPeaks = 5;
+		params.subpixelAccuracy = false;
+		params.regThreshold = 0.3;
+		params.relativeThreshold = 2.5;
+		params.absoluteThreshold = 3.5;
+		return params;
+	}
+}
@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FlatFieldCorrectionTest {
+
+	private static final float[] INVERSE_FLAT = { 1f, 2f, 4f };
+	private static final float[] DARK = { 10f, 10f, 20f };
+
+	@Test
+	public void testCorrectShortPlane() {
+		short[] raw = { 110, (short) 40010, 20 };
+		float[] out = new float[3];
+		FlatFieldCorrection.correctPlane(raw, INVERSE_FLAT, DARK, out);
+		assertArrayEquals(new float[] { 100f, 80000f, 0f }, out, 0f);
+	}
+
+	@Test
+	public void testCorrectFloatPlaneInPlace() {
+		float[] pixels = { 11f, 15f, 25f };
+		FlatFieldCorrection.correctPlane(pixels, INVERSE_FLAT, DARK, pixels);
+		assertArrayEquals(new float[] { 1f, 10f, 20f }, pixels, 0f);
+	}
+
+	@Test
+	public void testCorrectShortPlaneSaturating() {
+		short[] raw = { 110, (short) 40010, 20, 13 };
+		FlatFieldCorrection.correctPlane(raw, new float[] { 1f, 2f, 4f, 0.5f },
+			new float[] { 10f, 10f, 30f, 10f }, raw);
+		assertArrayEquals(new short[] { 100, (short) 65535, 0, 2 }, raw);
+	}
+
+	@Test
+	public void testCorrectBytePlaneSaturating() {
+		byte[] raw = { 50, (byte) 200, 5 };
+		FlatFieldCorrection.correctPlane(raw, INVERSE_FLAT, DARK, raw);
+		assertArrayEquals(new byte[] { 40, (byte) 255, 0 }, raw);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedPixelType() {
+		FlatFieldCorrection.correctPlane(new int[3], INVERSE_FLAT, DARK, new float[3]);
+	}
+}
@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FlatFieldEstimatorTest {
+
+	@Test
+	public void testMeanPerChannel() {
+		FlatFieldEstimator estimator = new FlatFieldEstimator(2, 2, 2, 2, 65535);
+		estimator.add(0, new short[] { 10, 20, 30, 40 });
+		estimator.add(0, new short[] { 30, 40, 50, (short) 60000 });
+		estimator.add(1, new byte[] { 1, 2, 3, (byte) 255 });
+		assertEquals(2, estimator.getCount(0));
+		assertEquals(1, estimator.getCount(1));
+		assertArrayEquals(new float[] { 20, 30, 40, 30020 }, estimator.getMean(0),
+			0f);
+		assertArrayEquals(new float[] { 1, 2, 3, 255 }, estimator.getMean(1), 0f);
+	}
+
+	@Test
+	public void testLowPercentileIgnoresBrightObjects() {
+		// 4x4 plane with 2x2 blocks: background of 100, one bright pixel per block
+		FlatFieldEstimator estimator = new FlatFieldEstimator(4, 4, 1, 2, 1000);
+		for (int n = 0; n < 10; n++) {
+			float[] plane = new float[16];
+			Arrays.fill(plane, 100);
+			plane[n % 16] = 1000;
+			estimator.add(0, plane);
+		}
+		float[] background = estimator.getPercentile(0, 0.1);
+		for (float v : background) {
+			// bin width around 100 is about 20 with 256 square root bins
+			assertEquals(100, v, 10);
+		}
+	}
+
+	@Test
+	public void testPercentileInterpolatesBetweenBlocks() {
+		// left block dark, right block bright
+		FlatFieldEstimator estimator = new FlatFieldEstimator(8, 2, 1, 4, 65535);
+		float[] plane = new float[16];
+		for (int y = 0; y < 2; y++) {
+			for (int x = 0; x < 8; x++) {
+				plane[y * 8 + x] = x < 4 ? 1000 : 9000;
+			}
+		}
+		estimator.add(0, plane);
+		float[] field = estimator.getPercentile(0, 0.5);
+		// constant up to the center of the outer blocks, increasing in between
+		assertEquals(field[0], field[1], 0f);
+		assertTrue(field[2] > field[1]);
+		assertTrue(field[4] > field[3]);
+		assertTrue(field[5] < field[6]);
+		assertEquals(field[6], field[7], 0f);
+		assertEquals(field[0], field[8], 0f);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPercentile() {
+		new FlatFieldEstimator(2, 2, 1, 2, 255).getPercentile(0, 10);
+	}
+}
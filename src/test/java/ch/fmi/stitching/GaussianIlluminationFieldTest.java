@@ -0,0 +1,54 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class GaussianIlluminationFieldTest {
+
+	@Test
+	public void testRenderPixels() {
+		double[] params = { 20.5, 12.0, 100.0, 0.01 };
+		int width = 37;
+		int height = 29;
+		float[] pixels = GaussianIlluminationField.renderPixels(params, width,
+			height, 3);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double d2 = (x - params[0]) * (x - params[0]) + (y - params[1]) *
+					(y - params[1]);
+				assertEquals(params[2] * Math.exp(-params[3] * d2), pixels[y * width +
+					x], 1e-4);
+			}
+		}
+	}
+
+	@Test
+	public void testRenderMoreThreadsThanRows() {
+		float[] pixels = GaussianIlluminationField.renderPixels(new double[] { 0,
+			0, 1, 0 }, 4, 2, 8);
+		assertArrayEquals(new float[] { 1, 1, 1, 1, 1, 1, 1, 1 }, pixels, 0f);
+	}
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GlobalAlignmentTest {
+
+	private static final int COLUMNS = 30;
+	private static final int ROWS = 20;
+
+	@Test
+	public void testGridWithOutliers() {
+		Random random = new Random(7);
+		List<float[]> stage = new ArrayList<>();
+		double[][] truth = new double[COLUMNS * ROWS][];
+		for (int y = 0; y < ROWS; y++) {
+			for (int x = 0; x < COLUMNS; x++) {
+				stage.add(new float[] { 900 * x, 900 * y });
+				// stage errors of up to 20 pixels
+				truth[y * COLUMNS + x] = new double[] { 900 * x + 40 * (random
+					.nextDouble() - 0.5), 900 * y + 40 * (random.nextDouble() - 0.5) };
+			}
+		}
+		List<int[]> links = new ArrayList<>();
+		for (int y = 0; y < ROWS; y++) {
+			for (int x = 0; x < COLUMNS; x++) {
+				int i = y * COLUMNS + x;
+				if (x + 1 < COLUMNS) links.add(new int[] { i, i + 1 });
+				if (y + 1 < ROWS) links.add(new int[] { i, i + COLUMNS });
+			}
+		}
+		PairTable table = new PairTable(links.size(), 2);
+		int nOutliers = 0;
+		for (int k = 0; k < links.size(); k++) {
+			int i = links.get(k)[0];
+			int j = links.get(k)[1];
+			float dx = (float) (truth[j][0] - truth[i][0] + 0.1 * random
+				.nextGaussian());
+			float dy = (float) (truth[j][1] - truth[i][1] + 0.1 * random
+				.nextGaussian());
+			if (k % 50 == 17) {
+				// wrong peak
+				dx += 60;
+				nOutliers++;
+			}
+			table.setTiles(k, i, j);
+			table.setResult(k, new float[] { dx, dy, 0.9f });
+		}
+
+		GlobalAlignment alignment = new GlobalAlignment(table, stage.size(), 0.7,
+			GlobalAlignment.DEFAULT_ABSOLUTE_THRESHOLD,
+			GlobalAlignment.DEFAULT_RELATIVE_THRESHOLD);
+		double[] solution = alignment.solve(stage);
+		assertEquals(links.size(), alignment.getLinkCount());
+		assertEquals(nOutliers, alignment.getDroppedCount());
+		for (int i = 0; i < stage.size(); i++) {
+			assertEquals(truth[i][0] - truth[0][0], solution[2 * i] - solution[0],
+				1.0);
+			assertEquals(truth[i][1] - truth[0][1], solution[2 * i + 1] -
+				solution[1], 1.0);
+		}
+	}
+
+	@Test
+	public void testUnlinkedTilesKeepKnownPositions() {
+		List<float[]> stage = new ArrayList<>();
+		stage.add(new float[] { 0, 0 });
+		stage.add(new float[] { 90, 0 });
+		stage.add(new float[] { 5000, 300 });
+		PairTable table = new PairTable(2, 2);
+		table.setTiles(0, 0, 1);
+		table.setResult(0, new float[] { 93, 2, 0.95f });
+		// failed and low correlation pairs are ignored
+		table.setTiles(1, 1, 2);
+		table.setResult(1, new float[] { 10, 10, 0.2f });
+		GlobalAlignment alignment = new GlobalAlignment(table, 3, 0.7, 3.5, 2.5);
+		double[] solution = alignment.solve(stage);
+		assertEquals(1, alignment.getLinkCount());
+		assertEquals(93, solution[2] - solution[0], 1e-3);
+		assertEquals(2, solution[3] - solution[1], 1e-3);
+		assertEquals(5000, solution[4], 1e-3);
+		assertEquals(300, solution[5], 1e-3);
+	}
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PairCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		PairCache cache = new PairCache(folder.getRoot());
+		float[] result = { 901.5f, -3.25f, 0.93f, 98, 1024 };
+		cache.put("phase correlation|dimensionality=2", 17L, -42L, 900, 0, result);
+		cache.save();
+
+		PairCache reloaded = new PairCache(folder.getRoot());
+		assertArrayEquals(result, reloaded.get("phase correlation|dimensionality=2",
+			17L, -42L, 900, 0), 0f);
+		// other tiles, offsets or parameters miss
+		assertNull(reloaded.get("phase correlation|dimensionality=2", 42L, 17L,
+			900, 0));
+		assertNull(reloaded.get("phase correlation|dimensionality=2", 17L, -42L,
+			901, 0));
+		assertNull(reloaded.get("phase correlation|dimensionality=3", 17L, -42L,
+			900, 0));
+	}
+
+	@Test
+	public void testCorruptFileIsDropped() throws IOException {
+		PairCache cache = new PairCache(folder.getRoot());
+		cache.put("p", 1L, 2L, 3, 4, new float[] { 1, 2, 0.5f });
+		cache.save();
+		File[] files = folder.getRoot().listFiles();
+		assertEquals(1, files.length);
+		try (FileOutputStream out = new FileOutputStream(files[0])) {
+			out.write(new byte[] { 1, 2, 3 });
+		}
+		assertNull(new PairCache(folder.getRoot()).get("p", 1L, 2L, 3, 4));
+		assertFalse(files[0].exists());
+	}
+
+	@Test
+	public void testSourceFingerprint() {
+		ImagePlus a = new ImagePlus("a", new FloatProcessor(8, 8, new float[64]));
+		float[] pixels = new float[64];
+		pixels[9] = 1;
+		ImagePlus b = new ImagePlus("b", new FloatProcessor(8, 8, pixels));
+		assertNotEquals(PairCache.fingerprint(a), PairCache.fingerprint(b));
+
+		// tiles with a source are identified by it, not by their pixels
+		File file = new File(folder.getRoot(), "tile.tif");
+		a.setProperty(PairCache.SOURCE_PROPERTY, PairCache.source(Arrays.asList(
+			file), "series=0"));
+		b.setProperty(PairCache.SOURCE_PROPERTY, PairCache.source(Arrays.asList(
+			file), "series=0"));
+		assertEquals(PairCache.fingerprint(a), PairCache.fingerprint(b));
+		b.setProperty(PairCache.SOURCE_PROPERTY, PairCache.source(Arrays.asList(
+			file), "series=1"));
+		assertNotEquals(PairCache.fingerprint(a), PairCache.fingerprint(b));
+	}
+
+	@Test
+	public void testOldestResultsAreDropped() throws IOException {
+		PairCache cache = new PairCache(folder.getRoot(), 2);
+		float[] result = { 1, 2, 0.5f };
+		cache.put("p", 1L, 2L, 0, 0, result);
+		cache.put("p", 2L, 3L, 0, 0, result);
+		cache.put("p", 1L, 2L, 0, 0, result);
+		cache.put("p", 3L, 4L, 0, 0, result);
+		cache.save();
+
+		PairCache reloaded = new PairCache(folder.getRoot(), 2);
+		assertNotNull(reloaded.get("p", 1L, 2L, 0, 0));
+		assertNull(reloaded.get("p", 2L, 3L, 0, 0));
+		assertNotNull(reloaded.get("p", 3L, 4L, 0, 0));
+	}
+}
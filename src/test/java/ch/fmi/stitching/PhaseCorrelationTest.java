@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PhaseCorrelationTest {
+
+	private static final int SIZE = 300;
+
+	@Test
+	public void testIntegerShifts() {
+		float[] image = TestImages.smoothNoise(new Random(1), SIZE, 1);
+		PhaseCorrelation pc = new PhaseCorrelation(160, 120);
+		int[][] shifts = { { 0, 0 }, { 17, -9 }, { -40, 25 }, { 60, 45 } };
+		for (int[] shift : shifts) {
+			float[] a = TestImages.crop(image, SIZE, 100, 100, 150, 110);
+			float[] b = TestImages.crop(image, SIZE, 100 + shift[0], 100 + shift[1],
+				150, 110);
+			float[] result = pc.register(a, b, 150, 110, 5, false);
+			assertNotNull(result);
+			assertEquals(shift[0], result[0], 0);
+			assertEquals(shift[1], result[1], 0);
+			assertEquals(1, result[2], 1e-4);
+		}
+	}
+
+	@Test
+	public void testSubpixelShift() {
+		float[] image = TestImages.smoothNoise(new Random(2), SIZE, 1);
+		float[] a = TestImages.crop(image, SIZE, 80, 80, 128, 128);
+		// shift by half a pixel in x by averaging neighbouring columns
+		float[] b = new float[128 * 128];
+		for (int y = 0; y < 128; y++) {
+			for (int x = 0; x < 128; x++) {
+				b[y * 128 + x] = (image[(y + 90) * SIZE + x + 85] + image[(y + 90) *
+					SIZE + x + 86]) / 2;
+			}
+		}
+		float[] result = new PhaseCorrelation(128, 128).register(a, b, 128, 128,
+			5, true);
+		assertNotNull(result);
+		assertEquals(5.5, result[0], 0.2);
+		assertEquals(10, result[1], 0.2);
+	}
+
+	@Test
+	public void testReuseSmallerImages() {
+		float[] image = TestImages.smoothNoise(new Random(3), SIZE, 1);
+		PhaseCorrelation pc = new PhaseCorrelation(200, 200);
+		assertTrue(pc.fits(64, 200));
+		assertFalse(pc.fits(201, 10));
+		float[] a = TestImages.crop(image, SIZE, 50, 50, 64, 40);
+		float[] b = TestImages.crop(image, SIZE, 53, 48, 64, 40);
+		float[] result = pc.register(a, b, 64, 40, 3, false);
+		assertEquals(3, result[0], 0);
+		assertEquals(-2, result[1], 0);
+	}
+
+	@Test
+	public void testCachedSpectra() {
+		float[] image = TestImages.smoothNoise(new Random(4), SIZE, 1);
+		PhaseCorrelation pc = new PhaseCorrelation(100, 80);
+		float[] a = TestImages.crop(image, SIZE, 100, 100, 100, 80);
+		float[] b = TestImages.crop(image, SIZE, 108, 93, 100, 80);
+		int size = PhaseCorrelation.spectrumSize(100, 80);
+		float[] aRe = new float[size], aIm = new float[size];
+		float[] bRe = new float[size], bIm = new float[size];
+		pc.spectra(a, b, 100, 80, aRe, aIm, bRe, bIm);
+		float[] packed = pc.register(a, b, 100, 80, 5, true);
+		assertArrayEquals(packed, pc.register(a, aRe, aIm, b, bRe, bIm, 100, 80,
+			5, true), 1e-3f);
+		assertArrayEquals(packed, pc.register(a, aRe, aIm, b, null, null, 100, 80,
+			5, true), 1e-3f);
+		// a single spectrum equals the unpacked one
+		float[] re = new float[size], im = new float[size];
+		pc.spectrum(b, 100, 80, re, im);
+		assertArrayEquals(bRe, re, 1e-2f);
+		assertArrayEquals(bIm, im, 1e-2f);
+		assertEquals(8, packed[0], 0.2);
+		assertEquals(-7, packed[1], 0.2);
+	}
+
+	@Test
+	public void testCrossCorrelation() {
+		float[] a = { 1, 2, 3, 4 };
+		float[] b = { 2, 4, 6, 8 };
+		assertEquals(1, PhaseCorrelation.crossCorrelation(a, b, 2, 2, 0, 0), 1e-6);
+		assertEquals(0, PhaseCorrelation.crossCorrelation(a, b, 2, 2, 1, 1), 0);
+	}
+}
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+public class ProjectionAccumulatorTest {
+
+	@Test
+	public void testUnsignedShortProjections() {
+		ProjectionAccumulator acc = new ProjectionAccumulator(2);
+		acc.add(new short[] { 10, (short) 40000 });
+		acc.add(new short[] { 30, 5 });
+		acc.add(new short[] { 20, 15 });
+		assertEquals(3, acc.getCount());
+		assertArrayEquals(new int[] { 30, 40000 }, toInt((short[]) acc.getMax()));
+		assertArrayEquals(new int[] { 10, 5 }, toInt((short[]) acc.getMin()));
+		assertArrayEquals(new float[] { 60, 40020 }, acc.getSum(), 0);
+		assertArrayEquals(new float[] { 20, 13340 }, acc.getMean(), 0);
+		assertSame(acc.getMean(), acc.getMean());
+		assertNull(acc.getPercentile());
+	}
+
+	@Test
+	public void testMedianEstimate() {
+		ProjectionAccumulator acc = new ProjectionAccumulator(1, 0.5);
+		// values 0..100 in a scrambled order, median 50
+		for (int i = 0; i <= 100; i++) {
+			acc.add(new float[] { (i * 37) % 101 });
+		}
+		assertEquals(50, acc.getPercentile()[0], 10);
+	}
+
+	@Test
+	public void testSelectedStatistics() {
+		ProjectionAccumulator acc = new ProjectionAccumulator(2, EnumSet.of(
+			ProjectionAccumulator.Statistic.MAX), ProjectionAccumulator.NO_PERCENTILE);
+		acc.add(new byte[] { 10, (byte) 200 });
+		acc.add(new byte[] { 30, 5 });
+		assertArrayEquals(new int[] { 30, 200 }, new int[] { ((byte[]) acc
+			.getMax())[0] & 0xff, ((byte[]) acc.getMax())[1] & 0xff });
+		assertNull(acc.getMin());
+		assertNull(acc.getSum());
+		assertNull(acc.getMean());
+	}
+
+	private static int[] toInt(short[] values) {
+		int[] result = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = values[i] & 0xffff;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StitchingUtilsTest {
+
+	@Test
+	public void testOverlapRegions() {
+		// 2x1 grid of 100x80 tiles with 10% overlap, plus one distant tile
+		List<float[]> positions = Arrays.asList(new float[] { 0, 0 },
+			new float[] { 90, 0 }, new float[] { 1000, 1000 });
+		List<List<Rectangle>> regions = StitchingUtils.overlapRegions(positions,
+			100, 80);
+		assertEquals(Arrays.asList(new Rectangle(90, 0, 10, 80)), regions.get(0));
+		assertEquals(Arrays.asList(new Rectangle(0, 0, 10, 80)), regions.get(1));
+		assertTrue(regions.get(2).isEmpty());
+	}
+
+	@Test
+	public void testOverlapRegionsAreDisjoint() {
+		// 2x2 grid: the corner shared with the diagonal neighbor is read once
+		List<float[]> positions = Arrays.asList(new float[] { 0, 0 },
+			new float[] { 90, 0 }, new float[] { 0, 70 }, new float[] { 90, 70 });
+		List<List<Rectangle>> regions = StitchingUtils.overlapRegions(positions,
+			100, 80);
+		assertEquals(Arrays.asList(new Rectangle(90, 0, 10, 70), new Rectangle(0,
+			70, 100, 10)), regions.get(0));
+		assertEquals(Arrays.asList(new Rectangle(0, 0, 10, 70), new Rectangle(0,
+			70, 100, 10)), regions.get(1));
+		assertEquals(Arrays.asList(new Rectangle(0, 0, 100, 10), new Rectangle(90,
+			10, 10, 70)), regions.get(2));
+	}
+
+	@Test
+	public void testDisjoint() {
+		List<Rectangle> rectangles = Arrays.asList(new Rectangle(0, 0, 10, 10),
+			new Rectangle(5, 5, 10, 10), new Rectangle(20, 0, 5, 5));
+		List<Rectangle> disjoint = StitchingUtils.disjoint(rectangles);
+		// every pixel of the union is covered exactly once
+		for (int y = 0; y < 20; y++) {
+			for (int x = 0; x < 30; x++) {
+				int inUnion = 0;
+				for (Rectangle r : rectangles) {
+					if (r.contains(x, y)) inUnion = 1;
+				}
+				int count = 0;
+				for (Rectangle r : disjoint) {
+					if (r.contains(x, y)) count++;
+				}
+				assertEquals(inUnion, count);
+			}
+		}
+	}
+}
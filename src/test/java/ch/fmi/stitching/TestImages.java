@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import java.util.Random;
+
+/**
+ * Synthetic images shared by the registration tests.
+ */
+final class TestImages {
+
+	private TestImages() {}
+
+	/**
+	 * Creates a square image of smoothed noise with structures at several scales,
+	 * from single pixels up to boxes of the given radius, so that the correlation
+	 * peak is well defined even in binned copies.
+	 */
+	static float[] smoothNoise(Random random, int size, int maxRadius) {
+		float[] image = new float[size * size];
+		for (int i = 0; i < image.length; i++) {
+			image[i] = random.nextFloat();
+		}
+		for (int radius = 1; radius <= maxRadius; radius *= 2) {
+			float[] noise = new float[size * size];
+			for (int i = 0; i < noise.length; i++) {
+				noise[i] = random.nextFloat();
+			}
+			for (int y = radius; y < size - radius; y++) {
+				for (int x = radius; x < size - radius; x++) {
+					float sum = 0;
+					for (int j = -radius; j <= radius; j++) {
+						for (int i = -radius; i <= radius; i++) {
+							sum += noise[(y + j) * size + x + i];
+						}
+					}
+					image[y * size + x] += sum / (2 * radius + 1);
+				}
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Copies a rectangle out of a square image of the given size.
+	 */
+	static float[] crop(float[] image, int size, int x0, int y0, int width,
+		int height)
+	{
+		float[] crop = new float[width * height];
+		for (int y = 0; y < height; y++) {
+			System.arraycopy(image, (y0 + y) * size + x0, crop, y * width, width);
+		}
+		return crop;
+	}
+}
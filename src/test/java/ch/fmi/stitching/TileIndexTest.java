@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TileIndexTest {
+
+	@Test
+	public void testGridPairs() {
+		// 2x2 grid of 100x100 tiles with 10% overlap, plus a distant tile
+		List<float[]> positions = Arrays.asList(new float[] { 0, 0 },
+			new float[] { 90, 0 }, new float[] { 0, 90 }, new float[] { 90, 90 },
+			new float[] { 5000, -3000 });
+		TileIndex.Pairs pairs = new TileIndex(positions, 100, 100)
+			.overlappingPairs(0.05);
+		assertEquals(4, pairs.getPairs().size());
+		assertArrayEquals(new int[] { 0, 1 }, pairs.getPairs().get(0));
+		assertArrayEquals(new int[] { 0, 2 }, pairs.getPairs().get(1));
+		assertArrayEquals(new int[] { 1, 3 }, pairs.getPairs().get(2));
+		assertArrayEquals(new int[] { 2, 3 }, pairs.getPairs().get(3));
+		// the diagonal pairs overlap by 1% only
+		assertEquals(2, pairs.getDroppedCount());
+		assertEquals(6, new TileIndex(positions, 100, 100).overlappingPairs(0)
+			.getPairs().size());
+	}
+
+	@Test
+	public void testMatchesBruteForce() {
+		Random random = new Random(42);
+		List<float[]> positions = new ArrayList<>();
+		List<int[]> sizes = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			positions.add(new float[] { random.nextFloat() * 2000 - 1000, random
+				.nextFloat() * 2000 - 1000 });
+			sizes.add(new int[] { 50 + random.nextInt(100), 50 + random.nextInt(
+				100) });
+		}
+		TileIndex.Pairs pairs = new TileIndex(positions, sizes).overlappingPairs(
+			0.1);
+		List<String> expected = new ArrayList<>();
+		int dropped = 0;
+		for (int i = 0; i < positions.size(); i++) {
+			for (int j = i + 1; j < positions.size(); j++) {
+				double w = Math.min(positions.get(i)[0] + sizes.get(i)[0], positions
+					.get(j)[0] + sizes.get(j)[0]) - Math.max(positions.get(i)[0],
+						positions.get(j)[0]);
+				double h = Math.min(positions.get(i)[1] + sizes.get(i)[1], positions
+					.get(j)[1] + sizes.get(j)[1]) - Math.max(positions.get(i)[1],
+						positions.get(j)[1]);
+				if (w <= 0 || h <= 0) continue;
+				double smaller = Math.min(sizes.get(i)[0] * sizes.get(i)[1], sizes
+					.get(j)[0] * sizes.get(j)[1]);
+				if (w * h >= 0.1 * smaller) expected.add(i + "-" + j);
+				else dropped++;
+			}
+		}
+		List<String> actual = new ArrayList<>();
+		for (int[] pair : pairs.getPairs()) {
+			actual.add(pair[0] + "-" + pair[1]);
+		}
+		assertEquals(expected, actual);
+		assertEquals(dropped, pairs.getDroppedCount());
+	}
+}
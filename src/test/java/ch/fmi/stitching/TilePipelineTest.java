@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.stitching;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TilePipelineTest {
+
+	@Test
+	public void testResultsInTileOrder() throws IOException {
+		ArrayList<String> results = TilePipeline.read(3, i -> {
+			Thread.sleep((7 - i) % 4);
+			return i;
+		}).then(2, i -> i * 10).then(4, i -> "tile" + i).run(8);
+		assertEquals(8, results.size());
+		for (int i = 0; i < 8; i++) {
+			assertEquals("tile" + i * 10, results.get(i));
+		}
+	}
+
+	@Test
+	public void testBoundedQueues() throws IOException {
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		TilePipeline.read(2, i -> {
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			return i;
+		}).then(1, i -> {
+			Thread.sleep(2);
+			inFlight.decrementAndGet();
+			return i;
+		}).run(50);
+		// readers, queue and the consuming worker can hold only a few items
+		assertTrue(maxInFlight.get() <= 2 + TilePipeline.DEFAULT_QUEUE_CAPACITY +
+			1);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCheckedExceptionIsReported() throws IOException {
+		TilePipeline.read(2, i -> i).then(1, i -> {
+			if (i == 5) throw new Exception("failed");
+			return i;
+		}).run(20);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRuntimeExceptionIsRethrown() throws IOException {
+		TilePipeline.read(1, i -> {
+			if (i == 3) throw new IllegalStateException();
+			return i;
+		}).then(1, i -> i).run(10);
+	}
+}
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.visiview;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.fmi.stitching.visiview.IlluminationProfileStore;
+
+public class IlluminationProfileStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		IlluminationProfileStore store = new IlluminationProfileStore(folder.getRoot());
+		float[] profile = { 1f, 1.5f, 2f, 4f, 0f, 1.25f };
+		store.put("DAPI_20x/0.8_2x2_3x2", IlluminationProfileStore.FLAT, 3, 2,
+			profile);
+		assertArrayEquals(profile, store.get("DAPI_20x/0.8_2x2_3x2",
+			IlluminationProfileStore.FLAT, 3, 2), 0f);
+		// shared between stores of the same folder
+		assertSame(store.get("DAPI_20x/0.8_2x2_3x2",
+			IlluminationProfileStore.FLAT, 3, 2), new IlluminationProfileStore(
+				folder.getRoot()).get("DAPI_20x/0.8_2x2_3x2", IlluminationProfileStore.FLAT,
+					3, 2));
+	}
+
+	@Test
+	public void testMissingOrMismatchingProfile() throws IOException {
+		IlluminationProfileStore store = new IlluminationProfileStore(folder.getRoot());
+		assertNull(store.get("GFP", IlluminationProfileStore.FLAT, 2, 2));
+		store.put("GFP", IlluminationProfileStore.FLAT, 2, 2, new float[4]);
+		assertNull(store.get("GFP", IlluminationProfileStore.DARK, 2, 2));
+		assertNull(store.get("GFP", IlluminationProfileStore.FLAT, 4, 1));
+	}
+
+	@Test
+	public void testReplacedProfile() throws IOException {
+		IlluminationProfileStore store = new IlluminationProfileStore(folder.getRoot());
+		store.put("Cy5", IlluminationProfileStore.FLAT, 2, 1, new float[] { 1f,
+			2f });
+		assertEquals(2f, store.get("Cy5", IlluminationProfileStore.FLAT, 2, 1)[1],
+			0f);
+		store.put("Cy5", IlluminationProfileStore.FLAT, 2, 1, new float[] { 1f,
+			3f });
+		assertEquals(3f, store.get("Cy5", IlluminationProfileStore.FLAT, 2, 1)[1],
+			0f);
+	}
+}
@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * ImageJ utilities and commands for stitching various datasets
+ * %%
+ * Copyright (C) 2019 - 2023 Friedrich Miescher Institute for Biomedical
+ * 			Research, Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.fmi.visiview;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.fmi.stitching.visiview.ProjectionCache;
+
+public class ProjectionCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File cacheDir = folder.newFolder("cache");
+		List<File> sources = sources("a");
+		ImagePlus imp = projection(1);
+		new ProjectionCache(cacheDir, Long.MAX_VALUE).put(sources, 0, "MAX", imp);
+
+		ImagePlus cached = new ProjectionCache(cacheDir, Long.MAX_VALUE).get(
+			sources, 0, "MAX");
+		assertNotNull(cached);
+		assertEquals(imp.getTitle(), cached.getTitle());
+		assertEquals(2, cached.getNChannels());
+		assertEquals(1, cached.getNSlices());
+		assertArrayEquals((float[]) imp.getStack().getPixels(2), (float[]) cached
+			.getStack().getPixels(2), 0f);
+		// other series or methods miss
+		assertNull(new ProjectionCache(cacheDir, Long.MAX_VALUE).get(sources, 1,
+			"MAX"));
+		assertNull(new ProjectionCache(cacheDir, Long.MAX_VALUE).get(sources, 0,
+			"MIN"));
+		// entries are renamed from temporary files, which do not remain
+		for (String name : cacheDir.list()) {
+			assertTrue(name, name.endsWith(".proj.gz"));
+		}
+	}
+
+	@Test
+	public void testChangedSourceInvalidatesEntry() throws IOException {
+		File cacheDir = folder.newFolder("cache");
+		List<File> sources = sources("a");
+		ProjectionCache cache = new ProjectionCache(cacheDir, Long.MAX_VALUE);
+		cache.put(sources, 0, "MAX", projection(1));
+		assertNotNull(cache.get(sources, 0, "MAX"));
+
+		File source = sources.get(0);
+		assertTrue(source.setLastModified(source.lastModified() - 60000));
+		assertNull(cache.get(sources, 0, "MAX"));
+
+		cache.put(sources, 0, "MAX", projection(1));
+		try (FileOutputStream out = new FileOutputStream(source, true)) {
+			out.write(42);
+		}
+		assertNull(cache.get(sources, 0, "MAX"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() throws IOException {
+		File probeDir = folder.newFolder("probe");
+		new ProjectionCache(probeDir, Long.MAX_VALUE).put(sources("probe"), 0,
+			"MAX", projection(0));
+		long entrySize = probeDir.listFiles()[0].length();
+
+		// room for two entries, but not for three
+		File cacheDir = folder.newFolder("cache");
+		ProjectionCache cache = new ProjectionCache(cacheDir, 2 * entrySize +
+			entrySize / 2);
+		List<File> first = sources("first");
+		List<File> second = sources("second");
+		List<File> third = sources("third");
+		long now = System.currentTimeMillis();
+		cache.put(first, 0, "MAX", projection(1));
+		setLastModified(cacheDir, now - 30000, Long.MIN_VALUE);
+		cache.put(second, 0, "MAX", projection(2));
+		setLastModified(cacheDir, now - 20000, now - 25000);
+		// reading the first entry makes the second one the least recently used
+		assertNotNull(cache.get(first, 0, "MAX"));
+		cache.put(third, 0, "MAX", projection(3));
+
+		assertEquals(2, cacheDir.list().length);
+		assertNotNull(cache.get(first, 0, "MAX"));
+		assertNull(cache.get(second, 0, "MAX"));
+		assertNotNull(cache.get(third, 0, "MAX"));
+	}
+
+	@Test
+	public void testCorruptEntryIsDropped() throws IOException {
+		File cacheDir = folder.newFolder("cache");
+		List<File> sources = sources("a");
+		ProjectionCache cache = new ProjectionCache(cacheDir, Long.MAX_VALUE);
+		cache.put(sources, 0, "MAX", projection(1));
+		File[] entries = cacheDir.listFiles();
+		assertEquals(1, entries.length);
+		try (FileOutputStream out = new FileOutputStream(entries[0])) {
+			out.write(new byte[] { 1, 2, 3 });
+		}
+		assertNull(cache.get(sources, 0, "MAX"));
+		assertFalse(entries[0].exists());
+	}
+
+	private List<File> sources(String name) throws IOException {
+		File nd = folder.newFile(name + ".nd");
+		File stk = folder.newFile(name + "_s1.stk");
+		try (FileOutputStream out = new FileOutputStream(stk)) {
+			out.write(new byte[] { 1, 2, 3, 4 });
+		}
+		return Arrays.asList(nd, stk);
+	}
+
+	/**
+	 * Two-channel float projection of random (barely compressible) pixels.
+	 */
+	private static ImagePlus projection(long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(32, 32);
+		for (int c = 0; c < 2; c++) {
+			float[] pixels = new float[32 * 32];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = random.nextFloat();
+			}
+			stack.addSlice(null, pixels);
+		}
+		ImagePlus imp = new ImagePlus("MAX_tile", stack);
+		imp.setDimensions(2, 1, 1);
+		return imp;
+	}
+
+	/**
+	 * Set the modification time of all entries modified after a given time.
+	 */
+	private static void setLastModified(File dir, long time, long after) {
+		for (File f : dir.listFiles()) {
+			if (f.lastModified() > after) assertTrue(f.setLastModified(time));
+		}
+	}
+}
@@ -25,6 +25,7 @@ package ch.fmi.visiview;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -67,4 +68,25 @@ public class VisiviewUtilsTest {
 		assertTrue(fileList.stream().flatMap(Collection::stream).collect(Collectors
 			.toList()).contains(testFile1));
 	}
+
+	@Test
+	public void testParseChannelSelection() {
+		assertArrayEquals(new int[] { 0, 1, 2 }, VisiviewUtils.parseChannelSelection("", 3));
+		assertArrayEquals(new int[] { 1, 2, 3 }, VisiviewUtils.parseChannelSelection("2-4", 4));
+		assertArrayEquals(new int[] { 0, 3 }, VisiviewUtils.parseChannelSelection("4, 1", 4));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseChannelSelectionOutOfRange() {
+		VisiviewUtils.parseChannelSelection("1,5", 4);
+	}
+
+	@Test
+	public void testSelectChannels() {
+		List<File> files = Arrays.asList(new File("w1_t1"), new File("w2_t1"),
+			new File("w3_t1"), new File("w1_t2"), new File("w2_t2"), new File("w3_t2"));
+		assertEquals(Arrays.asList(new File("w2_t1"), new File("w3_t1"), new File(
+			"w2_t2"), new File("w3_t2")), VisiviewUtils.selectChannels(files, 3,
+				new int[] { 1, 2 }));
+	}
 }